@@ -0,0 +1,121 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Differences between two scrapes of the announcement list.
+ * <p>
+ * An announcement is identified by its URL: an URL that was not in the
+ * previous list is <em>added</em>, one that disappeared is <em>removed</em>
+ * and one whose title changed is <em>retitled</em>. The result is computed
+ * once with hash lookups and can be carried along with the change.
+ */
+// 前回と今回の告知一覧を比較した結果です。
+// URLをキーにしたHashMap/HashSetを一度だけ作成し、追加・削除・タイトル変更を1回の走査で求めます。
+@SuppressWarnings("serial")
+final class AnnouncementDiff implements Serializable {
+
+	private final List<Integer> added;
+	private final List<Integer> removed;
+	private final List<Integer> retitled;
+
+	/**
+	 * @param preSubjects
+	 *            titles of the previous scrape, may be {@code null}.
+	 * @param preUrls
+	 *            URLs of the previous scrape, may be {@code null}.
+	 * @param subjects
+	 *            titles of the current scrape.
+	 * @param urls
+	 *            URLs of the current scrape.
+	 */
+	AnnouncementDiff(List<String> preSubjects, List<String> preUrls,
+			List<String> subjects, List<String> urls) {
+		// データストアに空のリストを保存するとnullとして読み込まれるため、空のリストとして扱います。
+		if (preUrls == null) {
+			preUrls = Collections.emptyList();
+		}
+		if (preSubjects == null) {
+			preSubjects = Collections.emptyList();
+		}
+
+		// 前回のURL → タイトルの対応表を作成します。
+		Map<String, String> previous = new HashMap<String, String>(preUrls.size() * 2);
+		for (int i = 0; i < preUrls.size(); i++) {
+			if (!previous.containsKey(preUrls.get(i))) {
+				previous.put(preUrls.get(i),
+						i < preSubjects.size() ? preSubjects.get(i) : null);
+			}
+		}
+
+		List<Integer> added = new ArrayList<Integer>();
+		List<Integer> retitled = new ArrayList<Integer>();
+		Set<String> current = new HashSet<String>(urls.size() * 2);
+		for (int i = 0; i < urls.size(); i++) {
+			String url = urls.get(i);
+			current.add(url);
+			if (!previous.containsKey(url)) {
+				added.add(i);
+			} else {
+				String preSubject = previous.get(url);
+				if (preSubject != null && !preSubject.equals(subjects.get(i))
+						&& !DetailFetcher.PLACEHOLDER_TITLE.equals(subjects.get(i))) {
+					retitled.add(i);
+				}
+			}
+		}
+
+		List<Integer> removed = new ArrayList<Integer>();
+		for (int i = 0; i < preUrls.size(); i++) {
+			if (!current.contains(preUrls.get(i))) {
+				removed.add(i);
+			}
+		}
+
+		this.added = Collections.unmodifiableList(added);
+		this.removed = Collections.unmodifiableList(removed);
+		this.retitled = Collections.unmodifiableList(retitled);
+	}
+
+	/**
+	 * Indexes, in the current lists, of the announcements that are new.
+	 */
+	List<Integer> getAdded() {
+		return added;
+	}
+
+	/**
+	 * Indexes, in the previous lists, of the announcements no longer listed.
+	 */
+	List<Integer> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Indexes, in the current lists, of the announcements whose title changed.
+	 */
+	List<Integer> getRetitled() {
+		return retitled;
+	}
+
+	/**
+	 * Whether anything was added, removed or retitled.
+	 */
+	boolean hasChanges() {
+		return !added.isEmpty() || !removed.isEmpty() || !retitled.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "AnnouncementDiff(added=" + added + ", removed=" + removed
+				+ ", retitled=" + retitled + ")";
+	}
+
+}
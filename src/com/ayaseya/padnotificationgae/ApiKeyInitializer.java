@@ -22,8 +22,9 @@ import java.util.logging.Logger;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import net.sf.jsr107cache.Cache;
+
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
@@ -31,25 +32,82 @@ import com.google.appengine.api.datastore.KeyFactory;
 
 /**
  * Context initializer that loads the API key from the App Engine datastore.
+ * <p>
+ * The key itself is only kept in the datastore and in the
+ * {@link SenderRegistry} of each instance. Memcache holds a short-lived
+ * version stamp (a hash of the key) in front of the {@code Settings/MyKey}
+ * entity, so instances only read the entity when the stamp is missing or no
+ * longer matches their key.
  */
 // ServletContextListener
 // Servletコンテキストの変更に関する通知を受け取る処理を実装していきます。
 public class ApiKeyInitializer implements ServletContextListener {
 
-	static final String ATTRIBUTE_ACCESS_KEY = "apiKey";
-
-	private static final String ENTITY_KIND = "Settings";
-	private static final String ENTITY_KEY = "MyKey";
+	static final String ENTITY_KIND = "Settings";
+	static final String ENTITY_KEY = "MyKey";
 	private static final String ACCESS_KEY_FIELD = "ApiKey";
+	private static final String PARAMETER_GCM_ENDPOINT = "gcmEndpoint";
+	private static final String VERSION_KEY = ENTITY_KEY + ".version";
+
+	// APIキーのバージョンをmemcacheに保存する期間です。期限が切れると、いずれかのインスタンスがデータストアから読み直します。
+	private static final int VERSION_EXPIRATION_SECONDS = 60;
+
+	private static final Logger logger = Logger.getLogger(ApiKeyInitializer.class.getName());
 
-	private final Logger logger = Logger.getLogger(getClass().getName());
+	private static final Cache versions = CacheUtilities.createCache(ENTITY_KIND,
+			VERSION_EXPIRATION_SECONDS);
 
 	// Webアプリケーションが初期化処理を開始したことを通知します。
 	public void contextInitialized(ServletContextEvent event) {
 		logger.info("ApiKeyInitializerが呼び出されました");
-		
+		// context-paramのgcmEndpointを指定すると、GCMの代わりにそのURLへ送信します(負荷試験用のスタブサーバーなど)。
+		// サーブレットより先に設定し、ウォームアップで作成するSenderも同じ送信先を使うようにします。
+		String endpoint = event.getServletContext().getInitParameter(PARAMETER_GCM_ENDPOINT);
+		SenderRegistry.setEndpoint(endpoint == null || endpoint.trim().isEmpty() ? null
+				: endpoint.trim());
+		// memcacheにAPIキーのバージョンがない場合だけデータストアから読み込みます。(初回起動時はエンティティを作成します)
+		if (getCachedVersion() == null) {
+			loadApiKey();
+		}
+	}
+
+	/**
+	 * Gets the API key, from the {@link SenderRegistry} of this instance if it
+	 * already holds one.
+	 */
+	// APIキーそのものは共有のmemcacheに保存せず、データストアとインスタンス内のSenderRegistryだけに保持します。
+	// 管理コンソールでAPIキーを変更した場合は、SenderRegistryがバージョンの変化から1分程度で検出して読み直します。
+	static String getApiKey() {
+		String currentKey = SenderRegistry.getKey();
+		if (currentKey != null) {
+			return currentKey;
+		}
+		return loadApiKey();
+	}
+
+	/**
+	 * Gets the version stamp of the API key published in memcache, or
+	 * {@code null} if it expired.
+	 */
+	static String getCachedVersion() {
+		return (String) versions.get(VERSION_KEY);
+	}
+
+	/**
+	 * Returns the version stamp of an API key.
+	 */
+	// APIキーそのものをログやmemcacheに残さないよう、ハッシュ値をバージョンとして使用します。
+	static String versionOf(String key) {
+		return PageFingerprint.hash(key);
+	}
+
+	/**
+	 * Reads the API key from the datastore and publishes its version stamp in
+	 * memcache. The entity is created with a placeholder key on first boot.
+	 */
+	static String loadApiKey() {
 		// データストアのインスタンスを取得します。
-		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
 		// キーを生成します。(ここではSettingsというカインドにMyKeyというname属性を持ったプライマリーキーを設定します)
 		Key key = KeyFactory.createKey(ENTITY_KIND, ENTITY_KEY);
 
@@ -75,15 +133,17 @@ public class ApiKeyInitializer implements ServletContextListener {
 			datastore.put(entity);
 			
 			logger.severe("Created fake key. Please go to App Engine admin "
-					+ "console, change its value to your API Key (the entity "
+					+ "console and change its value to your API Key (the entity "
 					+ "type is '" + ENTITY_KIND
 					+ "' and its field to be changed is '" + ACCESS_KEY_FIELD
-					+ "'), then restart the server!");
+					+ "'); running instances pick it up within a minute.");
 		}
-		// データストアに保存されたサーバーAPIを取得します。
+		// データストアに保存されたサーバーAPIを取得し、そのバージョンをmemcacheに保存します。
 		String accessKey = (String) entity.getProperty(ACCESS_KEY_FIELD);
-		// ServletコンテキストにAPIの情報を付加します。
-		event.getServletContext().setAttribute(ATTRIBUTE_ACCESS_KEY, accessKey);
+		if (accessKey != null) {
+			versions.put(VERSION_KEY, versionOf(accessKey));
+		}
+		return accessKey;
 	}
 
 	// Servlet コンテキストがシャットダウン処理に入ることを通知します。
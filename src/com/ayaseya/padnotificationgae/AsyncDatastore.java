@@ -0,0 +1,286 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.utils.FutureWrapper;
+
+/**
+ * Asynchronous variant of {@link Datastore}.
+ * <p>
+ * Reads and single entity writes are issued with the
+ * {@link AsyncDatastoreService} and return as soon as the RPC is in flight;
+ * reads never use a transaction, so the caller can do network I/O while the
+ * datastore works. Device range queries, whose results are only fetched while
+ * iterating, are read on a request thread. Registry updates start their transactional get right away;
+ * the dependent put or delete and the commit are issued when the result is
+ * requested.
+ */
+// Datastoreクラスの非同期版です。結果をFutureで返すため、呼び出し元はデータストアの処理と
+// GCMへの送信などを並行して行うことができます。
+final class AsyncDatastore {
+
+	private static final Log log = Log.getLog(AsyncDatastore.class);
+
+	private static final AsyncDatastoreService datastore = InstrumentedDatastore
+			.getAsyncDatastoreService();
+
+	private AsyncDatastore() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @see Datastore#register(String)
+	 */
+	static Future<Void> register(final String regId) {
+		log.log(Level.FINE, "register", "regId", regId);
+		final Key key = Datastore.deviceKey(regId);
+		if (Datastore.isRegistered(key)) {
+			return immediate(null);
+		}
+		Transaction txn = getUnchecked(datastore.beginTransaction());
+		return new RegistryUpdate(txn, Collections.singletonList(key)) {
+			@Override
+			protected void write(Transaction txn, Map<Key, Entity> existing,
+					List<Future<?>> writes) {
+				if (!existing.containsKey(key)) {
+					writes.add(datastore.put(txn, Datastore.newDevice(key, regId)));
+				}
+			}
+
+			@Override
+			protected void committed(Map<Key, Entity> existing) {
+				Datastore.afterRegister(key, regId, !existing.containsKey(key));
+			}
+		};
+	}
+
+	/**
+	 * @see Datastore#unregister(String)
+	 */
+	static Future<Void> unregister(final String regId) {
+		log.log(Level.FINE, "unregister", "regId", regId);
+		final Key key = Datastore.deviceKey(regId);
+		Transaction txn = getUnchecked(datastore.beginTransaction());
+		return new RegistryUpdate(txn, Collections.singletonList(key)) {
+			@Override
+			protected void write(Transaction txn, Map<Key, Entity> existing,
+					List<Future<?>> writes) {
+				if (existing.containsKey(key)) {
+					writes.add(datastore.delete(txn, key));
+				}
+			}
+
+			@Override
+			protected void committed(Map<Key, Entity> existing) {
+				Datastore.afterUnregister(key, regId, existing.containsKey(key) ? -1 : 0);
+			}
+		};
+	}
+
+	/**
+	 * @see Datastore#updateRegistration(String, String)
+	 */
+	// キー名が変わるため、新しいIDのエンティティの作成と古いIDのエンティティの削除をXGトランザクションで行います。
+	static Future<Void> updateRegistration(final String oldId, final String newId) {
+		log.log(Level.FINE, "updateRegistration", "oldRegId", oldId, "newRegId", newId);
+		if (oldId.equals(newId)) {
+			return immediate(null);
+		}
+		final Key oldKey = Datastore.deviceKey(oldId);
+		final Key newKey = Datastore.deviceKey(newId);
+		Transaction txn = getUnchecked(datastore.beginTransaction(TransactionOptions.Builder
+				.withXG(true)));
+		return new RegistryUpdate(txn, Arrays.asList(oldKey, newKey)) {
+			@Override
+			protected void write(Transaction txn, Map<Key, Entity> existing,
+					List<Future<?>> writes) {
+				// 作成と削除は並行して行います。
+				if (!existing.containsKey(newKey)) {
+					writes.add(datastore.put(txn, Datastore.newDevice(newKey, newId)));
+				}
+				if (existing.containsKey(oldKey)) {
+					writes.add(datastore.delete(txn, oldKey));
+				}
+			}
+
+			@Override
+			protected void committed(Map<Key, Entity> existing) {
+				int delta = 0;
+				if (!existing.containsKey(newKey)) {
+					delta++;
+				}
+				if (existing.containsKey(oldKey)) {
+					delta--;
+				}
+				Datastore.afterUnregister(oldKey, oldId, delta);
+			}
+		};
+	}
+
+	/**
+	 * @see Datastore#getDevices(String, String)
+	 */
+	// クエリの結果は参照した時点で読み込まれるため、リクエストスレッドで全件を読み込み、呼び出し元の処理と並行させます。
+	static Future<List<String>> getDevices(final String firstKey, final String lastKey) {
+		FutureTask<List<String>> task = new FutureTask<List<String>>(
+				new Callable<List<String>>() {
+					@Override
+					public List<String> call() {
+						return Datastore.getDevices(firstKey, lastKey);
+					}
+				});
+		ThreadManager.createThreadForCurrentRequest(task).start();
+		return task;
+	}
+
+	/**
+	 * @see Datastore#getPendingMulticast(String)
+	 */
+	static Future<Datastore.PendingMulticast> getPendingMulticast(
+			final String encodedKey) {
+		log.log(Level.FINE, "getPendingMulticast");
+		Datastore.PendingMulticast cached = (Datastore.PendingMulticast) Datastore.multicasts
+				.get(encodedKey);
+		if (cached != null) {
+			return immediate(cached);
+		}
+		final Key key = KeyFactory.stringToKey(encodedKey);
+		// 存在しない場合に例外ではなくnullを返すため、キーのリストで取得します。
+		return new FutureWrapper<Map<Key, Entity>, Datastore.PendingMulticast>(
+				datastore.get(Collections.singletonList(key))) {
+			@Override
+			protected Datastore.PendingMulticast wrap(Map<Key, Entity> entities) {
+				Entity entity = entities.get(key);
+				if (entity == null) {
+					log.log(Level.SEVERE, "noMulticast", "key", key);
+					return null;
+				}
+				Datastore.PendingMulticast pending = Datastore.toPendingMulticast(entity);
+				Datastore.multicasts.put(encodedKey, pending);
+				return pending;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	/**
+	 * @see Datastore#createMulticast(List, List)
+	 */
+	// 1件のエンティティの保存は単独でアトミックなため、トランザクションは使用しません。
+	static Future<String> createMulticast(final List<String> devices,
+			final List<Integer> attempts) {
+		log.log(Level.FINE, "createMulticast");
+		return new FutureWrapper<Key, String>(datastore.put(Datastore.newMulticast(
+				devices, attempts))) {
+			@Override
+			protected String wrap(Key key) {
+				String encodedKey = KeyFactory.keyToString(key);
+				Datastore.cacheMulticast(encodedKey, devices, attempts);
+				return encodedKey;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	// 登録状態を更新するトランザクションのFutureです。
+	// トランザクション内の読み込みは作成した時点で開始し、結果を参照した時点で書き込みとコミットを行います。
+	// コミットした後に、キャッシュとデバイス数のカウンターを更新します。
+	private abstract static class RegistryUpdate extends
+			FutureWrapper<Map<Key, Entity>, Void> {
+
+		private final Transaction txn;
+
+		RegistryUpdate(Transaction txn, List<Key> keys) {
+			super(datastore.get(txn, keys));
+			this.txn = txn;
+		}
+
+		// 読み込んだ結果から書き込みを開始し、そのFutureをwritesに追加します。
+		protected abstract void write(Transaction txn, Map<Key, Entity> existing,
+				List<Future<?>> writes);
+
+		protected abstract void committed(Map<Key, Entity> existing);
+
+		@Override
+		protected Void wrap(Map<Key, Entity> existing) throws Exception {
+			try {
+				List<Future<?>> writes = new ArrayList<Future<?>>(2);
+				write(txn, existing, writes);
+				for (Future<?> write : writes) {
+					write.get();
+				}
+				txn.commitAsync().get();
+			} finally {
+				if (txn.isActive()) {
+					txn.rollbackAsync();
+				}
+			}
+			committed(existing);
+			return null;
+		}
+
+		@Override
+		protected Throwable convertException(Throwable cause) {
+			if (txn.isActive()) {
+				txn.rollbackAsync();
+			}
+			return cause;
+		}
+	}
+
+	/**
+	 * Waits for a future, rethrowing runtime exceptions as they are and
+	 * wrapping other failures in an {@link IllegalStateException}.
+	 */
+	static <T> T getUnchecked(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns a future that is already done with the given value.
+	 */
+	static <T> Future<T> immediate(T value) {
+		FutureTask<T> task = new FutureTask<T>(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, value);
+		task.run();
+		return task;
+	}
+
+}
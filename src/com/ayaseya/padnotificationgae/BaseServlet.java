@@ -83,6 +83,21 @@ abstract class BaseServlet extends HttpServlet {
 		return value.trim();
 	}
 
+	// init-paramから数値を取得します。未設定や不正な値の場合は初期値を返します。
+	// 設定の誤りでサーブレットの初期化が失敗しないよう、不正な値は警告を出力して無視します。
+	protected int getIntParameter(String name, int defaultValue) {
+		String value = getInitParameter(name);
+		if (isEmptyOrNull(value)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warning("Invalid init-param " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
 	protected void setSuccess(HttpServletResponse resp) {
 		setSuccess(resp, 0);
 	}
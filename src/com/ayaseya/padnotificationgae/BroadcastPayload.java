@@ -0,0 +1,130 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.jsr107cache.Cache;
+
+import org.json.simple.JSONValue;
+
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.Message;
+
+/**
+ * GCM message of a {@link ChangeEvent}, built and JSON encoded once and then
+ * reused by every task that delivers the event.
+ */
+// 変更内容から作成したGCMのメッセージと、JSONにエンコード済みのバイト列を保持します。
+// メッセージは変更内容ごとに一度だけ作成し、インスタンス内とmemcacheにキャッシュします。
+@SuppressWarnings("serial")
+final class BroadcastPayload implements Serializable {
+
+	private static final String CACHE_NAMESPACE = "BroadcastPayload";
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 24 * 60 * 60;
+	private static final int LOCAL_CAPACITY = 16;
+
+	private static final Cache memcache = CacheUtilities.createCache(
+			CACHE_NAMESPACE, MEMCACHE_EXPIRATION_SECONDS);
+
+	@SuppressWarnings("serial")
+	private static final Map<String, BroadcastPayload> local = Collections
+			.synchronizedMap(new LinkedHashMap<String, BroadcastPayload>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, BroadcastPayload> eldest) {
+					return size() > LOCAL_CAPACITY;
+				}
+			});
+
+	private final Message message;
+	private final byte[] encodedFields;
+
+	private BroadcastPayload(Message message) {
+		this.message = message;
+		this.encodedFields = encodeFields(message);
+	}
+
+	/**
+	 * Gets the payload of the given event, building it on first use.
+	 */
+	static BroadcastPayload forEvent(ChangeEvent event) {
+		String key = event.getKey();
+		BroadcastPayload payload = local.get(key);
+		if (payload != null) {
+			return payload;
+		}
+		payload = (BroadcastPayload) memcache.get(key);
+		if (payload == null) {
+			payload = new BroadcastPayload(buildMessage(event));
+			memcache.put(key, payload);
+		}
+		local.put(key, payload);
+		return payload;
+	}
+
+	// 変更内容から送信するメッセージを作成します。
+	private static Message buildMessage(ChangeEvent event) {
+		List<String> subjects = event.getSubjects();
+		List<String> urls = event.getUrls();
+		Message.Builder builder = new Message.Builder();
+		builder.addData("INDEX", String.valueOf(urls.size())); // 更新された件数です。
+		for (int i = 0; i < urls.size(); i++) {
+
+			builder.addData("URL" + (i + 1), urls.get(i));
+			builder.addData("SUBJECT" + (i + 1), subjects.get(i));
+
+		}
+		return builder.build();
+	}
+
+	// registration_ids以外のJSONのフィールドを「"data":{...},...」の形式でエンコードします。
+	private static byte[] encodeFields(Message message) {
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		putIfNotNull(fields, Constants.PARAM_TIME_TO_LIVE, message.getTimeToLive());
+		putIfNotNull(fields, Constants.PARAM_COLLAPSE_KEY, message.getCollapseKey());
+		putIfNotNull(fields, Constants.PARAM_RESTRICTED_PACKAGE_NAME,
+				message.getRestrictedPackageName());
+		putIfNotNull(fields, Constants.PARAM_DELAY_WHILE_IDLE,
+				message.isDelayWhileIdle());
+		putIfNotNull(fields, Constants.PARAM_DRY_RUN, message.isDryRun());
+		if (!message.getData().isEmpty()) {
+			fields.put(Constants.JSON_PAYLOAD, message.getData());
+		}
+		String json = JSONValue.toJSONString(fields);
+		// 前後の{}を取り除きます。
+		String members = json.substring(1, json.length() - 1);
+		try {
+			return members.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void putIfNotNull(Map<String, Object> fields, String name,
+			Object value) {
+		if (value != null) {
+			fields.put(name, value);
+		}
+	}
+
+	/**
+	 * The message, for APIs that need a {@link Message} instance.
+	 */
+	Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * UTF-8 encoded JSON members of the message other than
+	 * {@code registration_ids}, without the surrounding braces. Empty if the
+	 * message has no fields.
+	 */
+	byte[] getEncodedFields() {
+		return encodedFields;
+	}
+
+}
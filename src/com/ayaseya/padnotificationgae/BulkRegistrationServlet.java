@@ -0,0 +1,149 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Servlet that registers or unregisters many devices in one request.
+ * <p>
+ * The body is either one registration id per line or, when the content type
+ * is JSON, an array of registration ids (or an object with a
+ * {@value #JSON_REG_IDS} array). Duplicated ids are ignored. The response is
+ * a JSON object with the outcome of each distinct id.
+ * <p>
+ * Mapped to {@code /admin/registerAll} and {@code /admin/unregisterAll}, for
+ * migrations and restores from backup.
+ */
+// 移行やバックアップからの復元のため、大量のレジストレーションIDをまとめて登録・登録解除するサーブレットです。
+// 1件ずつRegisterServletを呼び出す代わりに、500件ごとにまとめてデータストアを読み書きします。
+@SuppressWarnings("serial")
+public class BulkRegistrationServlet extends BaseServlet {
+
+	static final String JSON_REG_IDS = "regIds";
+
+	static final String STATUS_REGISTERED = "registered";
+	static final String STATUS_ALREADY_REGISTERED = "alreadyRegistered";
+	static final String STATUS_UNREGISTERED = "unregistered";
+	static final String STATUS_NOT_REGISTERED = "notRegistered";
+
+	// 1回のリクエストで受け付けるレジストレーションIDの上限です。リクエストの制限時間(60秒)内に処理できる件数にします。
+	private static final int MAX_REG_IDS = 10000;
+
+	private static final String UNREGISTER_PATH = "/admin/unregisterAll";
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		Set<String> regIds;
+		try {
+			regIds = readRegIds(req);
+		} catch (ParseException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid JSON body");
+			return;
+		} catch (IllegalArgumentException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		if (regIds.size() > MAX_REG_IDS) {
+			resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					"At most " + MAX_REG_IDS + " registration ids per request");
+			return;
+		}
+		boolean unregister = UNREGISTER_PATH.equals(req.getServletPath());
+
+		Map<String, String> results = new LinkedHashMap<String, String>();
+		List<String> batch = new ArrayList<String>(Datastore.MAX_BATCH_SIZE);
+		int changed = 0;
+		for (String regId : regIds) {
+			batch.add(regId);
+			if (batch.size() == Datastore.MAX_BATCH_SIZE) {
+				changed += apply(batch, unregister, results);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			changed += apply(batch, unregister, results);
+		}
+		logger.info((unregister ? "Unregistered " : "Registered ") + changed
+				+ " of " + regIds.size() + " devices");
+
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("total", regIds.size());
+		json.put("changed", changed);
+		json.put("results", results);
+		byte[] body = JSONValue.toJSONString(json).getBytes("UTF-8");
+		setSuccess(resp, body.length);
+		resp.setContentType("application/json; charset=UTF-8");
+		resp.getOutputStream().write(body);
+	}
+
+	// 1回分のバッチを登録・登録解除し、IDごとの結果を追加します。状態が変わった件数を返します。
+	private int apply(List<String> batch, boolean unregister,
+			Map<String, String> results) {
+		if (unregister) {
+			Set<String> removed = Datastore.unregisterAll(batch);
+			for (String regId : batch) {
+				results.put(regId, removed.contains(regId) ? STATUS_UNREGISTERED
+						: STATUS_NOT_REGISTERED);
+			}
+			return removed.size();
+		}
+		Set<String> added = Datastore.registerAll(batch);
+		for (String regId : batch) {
+			results.put(regId, added.contains(regId) ? STATUS_REGISTERED
+					: STATUS_ALREADY_REGISTERED);
+		}
+		return added.size();
+	}
+
+	// 本文からレジストレーションIDを読み込みます。空の値と重複を除き、最初に現れた順序を保ちます。
+	// JSONの形や要素の型が正しくない場合はIllegalArgumentExceptionをスローします。
+	private Set<String> readRegIds(HttpServletRequest req) throws IOException,
+			ParseException {
+		Set<String> regIds = new LinkedHashSet<String>();
+		String contentType = req.getContentType();
+		BufferedReader reader = req.getReader();
+		if (contentType != null && contentType.contains("json")) {
+			Object json = new JSONParser().parse(reader);
+			if (json instanceof Map) {
+				json = ((Map<?, ?>) json).get(JSON_REG_IDS);
+			}
+			if (!(json instanceof List)) {
+				throw new IllegalArgumentException("Expected an array of registration ids");
+			}
+			for (Object value : (List<?>) json) {
+				if (value != null && !(value instanceof String)) {
+					throw new IllegalArgumentException(
+							"Registration ids must be strings: " + value);
+				}
+				addRegId(regIds, (String) value);
+			}
+		} else {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				addRegId(regIds, line);
+			}
+		}
+		return regIds;
+	}
+
+	private void addRegId(Set<String> regIds, String value) {
+		if (!isEmptyOrNull(value)) {
+			regIds.add(value.trim());
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.jsr107cache.Cache;
+import net.sf.jsr107cache.CacheException;
+import net.sf.jsr107cache.CacheManager;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.jsr107cache.GCacheFactory;
+
+/**
+ * Helper for creating memcache backed JCache (JSR 107) instances.
+ */
+// war/WEB-INF/libに同梱されているjsr107cacheを使ってmemcacheのキャッシュを生成します。
+public final class CacheUtilities {
+
+	private CacheUtilities() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Creates a cache whose entries expire after the given number of seconds.
+	 *
+	 * @param namespace
+	 *            memcache namespace, so keys of different caches never clash.
+	 * @param expirationSeconds
+	 *            time to live of each entry.
+	 */
+	static Cache createCache(String namespace, int expirationSeconds) {
+		Map<String, Object> props = new HashMap<String, Object>();
+		props.put(GCacheFactory.NAMESPACE, namespace);
+		props.put(GCacheFactory.EXPIRATION_DELTA, expirationSeconds);// 有効期限(秒)を設定します。
+		try {
+			return CacheManager.getInstance().getCacheFactory().createCache(props);
+		} catch (CacheException e) {
+			throw new IllegalStateException("Could not create cache " + namespace, e);
+		}
+	}
+
+	/**
+	 * Removes several entries of a cache created by
+	 * {@link #createCache(String, int)} with one memcache call.
+	 *
+	 * @param namespace
+	 *            namespace the cache was created with.
+	 */
+	// JCacheには複数のキーをまとめて削除するメソッドがないため、同じ名前空間のMemcacheServiceで削除します。
+	static void removeAll(String namespace, Collection<String> keys) {
+		if (!keys.isEmpty()) {
+			MemcacheServiceFactory.getMemcacheService(namespace).deleteAll(keys);
+		}
+	}
+
+}
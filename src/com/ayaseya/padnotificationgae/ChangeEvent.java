@@ -0,0 +1,208 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import net.sf.jsr107cache.Cache;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+
+/**
+ * A detected change of the announcement list, persisted once and shared by
+ * every task that delivers it.
+ * <p>
+ * Instances are immutable. The encoded key is passed through the {@code send}
+ * and {@code gcm} queues so that any instance can load the event.
+ */
+// ScheduleJsoupTaskが検出した変更内容です。
+// ServletContextではなくデータストアに保存し、キーをタスクキューのパラメーターとして渡すことで
+// どのインスタンスでもプッシュ通知のタスクを実行できるようにします。
+@SuppressWarnings("serial")
+final class ChangeEvent implements Serializable {
+
+	// エンティティの形式を変更した場合は値を増やし、読み込み時に古い形式を判別します。
+	static final int VERSION = 1;
+
+	private static final String ENTITY_KIND = "ChangeEvent";
+	private static final String VERSION_PROPERTY = "Version";
+	private static final String CREATED_PROPERTY = "Created";
+	private static final String SUBJECT_PROPERTY = "Subject";
+	private static final String URL_PROPERTY = "Url";
+	private static final String REMOVED_PROPERTY = "Removed";
+	private static final String RETITLED_PROPERTY = "Retitled";
+
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 24 * 60 * 60;
+
+	private static final Logger logger = Logger.getLogger(ChangeEvent.class.getName());
+
+	private static final DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+
+	private static final Cache memcache = CacheUtilities.createCache(ENTITY_KIND,
+			MEMCACHE_EXPIRATION_SECONDS);
+
+	private final String key;
+	private final long created;
+	private final List<String> subjects;
+	private final List<String> urls;
+	private final int removed;
+	private final int retitled;
+
+	private ChangeEvent(String key, long created, List<String> subjects,
+			List<String> urls, int removed, int retitled) {
+		this.key = key;
+		this.created = created;
+		this.subjects = Collections.unmodifiableList(new ArrayList<String>(subjects));
+		this.urls = Collections.unmodifiableList(new ArrayList<String>(urls));
+		this.removed = removed;
+		this.retitled = retitled;
+	}
+
+	/**
+	 * Persists a new event for the announcements added by the given diff.
+	 *
+	 * @param subjects
+	 *            titles of the current scrape.
+	 * @param urls
+	 *            URLs of the current scrape.
+	 * @param diff
+	 *            differences with the previous scrape.
+	 */
+	static ChangeEvent create(List<String> subjects, List<String> urls,
+			AnnouncementDiff diff) {
+		// 通知に必要な、新しく追加された告知のタイトルとURLだけを保存します。
+		List<String> addedSubjects = new ArrayList<String>();
+		List<String> addedUrls = new ArrayList<String>();
+		for (int i : diff.getAdded()) {
+			addedSubjects.add(subjects.get(i));
+			addedUrls.add(urls.get(i));
+		}
+		Date created = new Date();
+
+		Entity entity = new Entity(ENTITY_KIND);
+		entity.setUnindexedProperty(VERSION_PROPERTY, VERSION);
+		entity.setProperty(CREATED_PROPERTY, created);
+		entity.setUnindexedProperty(SUBJECT_PROPERTY, addedSubjects);
+		entity.setUnindexedProperty(URL_PROPERTY, addedUrls);
+		entity.setUnindexedProperty(REMOVED_PROPERTY, diff.getRemoved().size());
+		entity.setUnindexedProperty(RETITLED_PROPERTY, diff.getRetitled().size());
+		datastore.put(entity);
+
+		ChangeEvent event = new ChangeEvent(KeyFactory.keyToString(entity.getKey()),
+				created.getTime(), addedSubjects, addedUrls, diff.getRemoved().size(),
+				diff.getRetitled().size());
+		memcache.put(event.key, event);
+		logger.info("Created change event " + event.key + " with "
+				+ addedUrls.size() + " new announcements");
+		return event;
+	}
+
+	/**
+	 * Loads an event, from memcache if possible.
+	 *
+	 * @param encodedKey
+	 *            key returned by {@link #getKey()}.
+	 * @return the event, or {@code null} if it does not exist.
+	 */
+	static ChangeEvent load(String encodedKey) {
+		ChangeEvent event = (ChangeEvent) memcache.get(encodedKey);
+		if (event != null) {
+			return event;
+		}
+		try {
+			event = fromEntity(datastore.get(KeyFactory.stringToKey(encodedKey)));
+		} catch (EntityNotFoundException e) {
+			logger.severe("No change event for key " + encodedKey);
+			return null;
+		}
+		if (event != null) {
+			memcache.put(encodedKey, event);
+		}
+		return event;
+	}
+
+	/**
+	 * Loads the most recent event.
+	 *
+	 * @return the event, or {@code null} if no change was detected yet.
+	 */
+	static ChangeEvent loadLatest() {
+		Query query = new Query(ENTITY_KIND).addSort(CREATED_PROPERTY,
+				SortDirection.DESCENDING);
+		List<Entity> entities = datastore.prepare(query).asList(
+				FetchOptions.Builder.withLimit(1));
+		if (entities.isEmpty()) {
+			return null;
+		}
+		return fromEntity(entities.get(0));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ChangeEvent fromEntity(Entity entity) {
+		Key key = entity.getKey();
+		long version = (Long) entity.getProperty(VERSION_PROPERTY);
+		if (version > VERSION) {
+			logger.severe("Unsupported change event version " + version + ": " + key);
+			return null;
+		}
+		List<String> subjects = (List<String>) entity.getProperty(SUBJECT_PROPERTY);
+		List<String> urls = (List<String>) entity.getProperty(URL_PROPERTY);
+		if (subjects == null) {
+			subjects = Collections.emptyList();
+		}
+		if (urls == null) {
+			urls = Collections.emptyList();
+		}
+		return new ChangeEvent(KeyFactory.keyToString(key),
+				((Date) entity.getProperty(CREATED_PROPERTY)).getTime(), subjects, urls,
+				((Long) entity.getProperty(REMOVED_PROPERTY)).intValue(),
+				((Long) entity.getProperty(RETITLED_PROPERTY)).intValue());
+	}
+
+	/**
+	 * Encoded key of the event, to be passed as a task parameter.
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Time the change was detected, in milliseconds.
+	 */
+	long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Titles of the new announcements, in page order.
+	 */
+	List<String> getSubjects() {
+		return subjects;
+	}
+
+	/**
+	 * URLs of the new announcements, in page order.
+	 */
+	List<String> getUrls() {
+		return urls;
+	}
+
+	int getRemovedCount() {
+		return removed;
+	}
+
+	int getRetitledCount() {
+		return retitled;
+	}
+
+}
@@ -15,22 +15,36 @@
  */
 package com.ayaseya.padnotificationgae;
 
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 
+import net.sf.jsr107cache.Cache;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 
 /**
  * Simple implementation of a data store using standard Java collections.
@@ -42,23 +56,72 @@ public final class Datastore {
 
 	static final int MULTICAST_SIZE = 1000;// 1回のクエリで取得できるエンティティ数は1000件までという制限に関係している？
 	// カインド名（テーブル名）を設定します。Device
-	// キー（プライマリーキー）の文字列となります。Device(1),Device(2),Device(3)…
+	// キー（プライマリーキー）の文字列となります。キー名はレジストレーションIDです。(古い形式ではDevice(1),Device(2),Device(3)…)
 	private static final String DEVICE_TYPE = "Device";
-	private static final String DEVICE_REG_ID_PROPERTY = "regId";
+	static final String DEVICE_REG_ID_PROPERTY = "regId";
+
+	// キー名の上限です。超える場合はレジストレーションIDのハッシュ値をキー名にします。
+	private static final int MAX_KEY_NAME_BYTES = 500;
+	private static final String HASHED_KEY_PREFIX = "sha1:";
+
+	// 古い形式のDeviceの移行が完了したことを示すエンティティです。
+	private static final Key MIGRATION_KEY = KeyFactory.createKey("Settings",
+			"DeviceMigration");
+	private static final String MIGRATION_COMPLETED_PROPERTY = "Completed";
+	private static volatile boolean migrated;
+
+	// 作成日時を保存していない古い形式のMulticastに、作成日時を補完し終えたことを示すエンティティです。
+	private static final Key MULTICAST_BACKFILL_KEY = KeyFactory.createKey("Settings",
+			"MulticastBackfill");
+	private static volatile boolean multicastsBackfilled;
+
+	/**
+	 * Maximum number of devices written by one call of
+	 * {@link #registerAll(Collection)} or {@link #unregisterAll(Collection)}.
+	 */
+	// 1回のバッチ書き込みで指定できるエンティティ数の上限です。
+	public static final int MAX_BATCH_SIZE = 500;
+
+	// IN条件1回のクエリで指定できる値の上限です。
+	private static final int MAX_IN_VALUES = 30;
+
+	// 分割キー1つあたりに使用する__scatter__の標本数です。多いほど分割後の件数が均等になります。
+	private static final int SCATTER_OVERSAMPLING = 32;
 
 	private static final String MULTICAST_TYPE = "Multicast";
 	private static final String MULTICAST_REG_IDS_PROPERTY = "regIds";
+	// 送信先と送信を試みた回数をRecipientCodecでエンコードし、インデックスを作成せずに保存するプロパティです。
+	private static final String MULTICAST_RECIPIENTS_PROPERTY = "recipients";
+	// regIdsと同じ順序で、各端末への送信を試みた回数を保存します。(古い形式)
+	private static final String MULTICAST_ATTEMPTS_PROPERTY = "attempts";
+	// 作成日時です。削除されずに残ったエンティティを検索するためインデックスを作成します。
+	private static final String MULTICAST_CREATED_PROPERTY = "Created";
 
 	// FetchOptionsでデータストアのクエリ結果を取得する際にどのような方法を使用するか設定できます。
 	// prefetchSizeは初回のアクセスで取得する件数
 	// chunkSizeは2回目以降のアクセスで取得する件数
-	private static final FetchOptions DEFAULT_FETCH_OPTIONS = FetchOptions.Builder
+	static final FetchOptions DEFAULT_FETCH_OPTIONS = FetchOptions.Builder
 			.withPrefetchSize(MULTICAST_SIZE).chunkSize(MULTICAST_SIZE);
 
-	private static final Logger logger = Logger.getLogger(Datastore.class.getName());
+	// 登録済みのレジストレーションIDをmemcacheに保存する期間です。
+	private static final int REGISTERED_EXPIRATION_SECONDS = 24 * 60 * 60;
+	// Multicastエンティティの内容をmemcacheに保存する期間です。リトライのタスクが実行されるまで保持します。
+	private static final int MULTICAST_EXPIRATION_SECONDS = 60 * 60;
+
+	// 登録や送信のたびに呼び出されるため、レジストレーションIDをハッシュ化して出力し、呼び出しごとのログはFINEにします。
+	private static final Log log = Log.getLog(Datastore.class);
 	
 	// データストアにアクセスするためデータストアサービスのインスタンスを取得します。
-	private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+	private static final DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+
+	// 登録済みのデバイスのキー名を保存し、同じ端末から繰り返し送られてくる登録をデータストアにアクセスせずに処理します。
+	// 登録の解除・更新の際に削除します。
+	private static final Cache registered = CacheUtilities.createCache(DEVICE_TYPE,
+			REGISTERED_EXPIRATION_SECONDS);
+
+	// リトライするMulticastエンティティの内容を、エンコードしたキーで保存します。
+	static final Cache multicasts = CacheUtilities.createCache(MULTICAST_TYPE,
+			MULTICAST_EXPIRATION_SECONDS);
 
 	// Datastoreクラスのコンストラクタ
 	private Datastore() {
@@ -73,30 +136,37 @@ public final class Datastore {
 	 *            device's registration id.
 	 */
 	// レジストレーションIDを登録する処理です。
+	// レジストレーションIDをキー名にしているため、クエリを使わずにキーで存在を確認でき、重複して登録されることもありません。
 	public static void register(String regId) {
-		logger.info("Registering " + regId);
+		log.log(Level.FINE, "register", "regId", regId);
+		Key key = deviceKey(regId);
+		if (isRegistered(key)) {
+			log.log(Level.FINE, "alreadyRegistered", "regId", regId, "cached", true);
+			return;
+		}
 		// トランザクション処理を開始します。
 		// (データベースにおける)トランザクションとは、データベースへのデータの保存、取得、更新など一連の処理を、一つの処理として扱うことです。
+		// デバイス数のカウンターはトランザクションに含めず、コミットした後に更新します。
+		// (カウンターのシャードを含めると、異なる端末の登録同士が競合するためです。ずれは定期的に補正されます)
 		Transaction txn = datastore.beginTransaction();
 		try {
 			// データストアにレジストレーションIDが登録されているか確認します。
-			Entity entity = findDeviceByRegId(regId);
-			if (entity != null) {
-				logger.fine(regId + " is already registered; ignoring.");
+			try {
+				datastore.get(txn, key);
+				log.log(Level.FINE, "alreadyRegistered", "regId", regId);
+				afterRegister(key, regId, false);
 				return;
+			} catch (EntityNotFoundException e) {
+				// 登録されていなかった場合は、以下で登録します。
 			}
-			// 登録されていなかった場合、
-			// カインド名を引数にエンティティのインスタンスを作成します。
-			entity = new Entity(DEVICE_TYPE);
-			// setProperty()メソッドの第一引数はプロパティー名、第２引数はプロパティーの値そのものです。
-			entity.setProperty(DEVICE_REG_ID_PROPERTY, regId);// レジストレーションIDというプロパティ（カラム）とその要素を格納します。
-			datastore.put(entity);// データストアに格納します。
+			datastore.put(txn, newDevice(key, regId));// データストアに格納します。
 			txn.commit();// コミット…トランザクション処理の確定します。（トランザクションの処理は終了します）
 		} finally {
 			if (txn.isActive()) {// コミットが失敗していたらトランザクションが終了せず生存しているのでロールバック処理に移ります。
 				txn.rollback();// ロールバック…トランザクション中の処理の取り消します。
 			}
 		}
+		afterRegister(key, regId, true);
 	}
 
 	/**
@@ -107,126 +177,501 @@ public final class Datastore {
 	 */
 	// レジストレーションIDの登録を解除する処理です。
 	public static void unregister(String regId) {
-		logger.info("Unregistering " + regId);
+		log.log(Level.FINE, "unregister", "regId", regId);
+		Key key = deviceKey(regId);
+		boolean deleted = false;
 		Transaction txn = datastore.beginTransaction();
 		try {
-			Entity entity = findDeviceByRegId(regId);
-			if (entity == null) {
-				logger.warning("Device " + regId + " already unregistered");
-			} else {// データストアに登録された、エンティティ（レコード）を削除します。
-				Key key = entity.getKey();// 該当のレジストレーションIDのキー（プライマリー）を取得します。
-				datastore.delete(key);// 該当のキーの値をデータストアから削除します。
+			try {
+				datastore.get(txn, key);
+				// データストアに登録された、エンティティ（レコード）をキーを指定して削除します。
+				datastore.delete(txn, key);
+				txn.commit();
+				deleted = true;
+			} catch (EntityNotFoundException e) {
+				log.log(Level.INFO, "alreadyUnregistered", "regId", regId);
 			}
-			txn.commit();
 		} finally {
 			if (txn.isActive()) {
 				txn.rollback();
 			}
 		}
+		afterUnregister(key, regId, deleted ? -1 : 0);
 	}
 
 	/**
 	 * Updates the registration id of a device.
 	 */
 	// レジストレーションIDを更新する処理です。
+	// キー名が変わるため、新しいIDのエンティティの作成と古いIDのエンティティの削除をXGトランザクションで行います。
 	public static void updateRegistration(String oldId, String newId) {
-		logger.info("Updating " + oldId + " to " + newId);
-		Transaction txn = datastore.beginTransaction();
+		log.log(Level.FINE, "updateRegistration", "oldRegId", oldId, "newRegId", newId);
+		if (oldId.equals(newId)) {
+			return;
+		}
+		Key oldKey = deviceKey(oldId);
+		Key newKey = deviceKey(newId);
+		int delta = 0;
+		Transaction txn = datastore.beginTransaction(TransactionOptions.Builder
+				.withXG(true));
 		try {
-			Entity entity = findDeviceByRegId(oldId);
-			if (entity == null) {
-				logger.warning("No device for registration id " + oldId);
-				return;
+			Map<Key, Entity> entities = datastore.get(txn, Arrays.asList(oldKey, newKey));
+			if (!entities.containsKey(newKey)) {
+				datastore.put(txn, newDevice(newKey, newId));
+				delta++;
+			}
+			if (entities.containsKey(oldKey)) {
+				datastore.delete(txn, oldKey);
+				delta--;
 			}
-			entity.setProperty(DEVICE_REG_ID_PROPERTY, newId);
-			datastore.put(entity);
 			txn.commit();
 		} finally {
 			if (txn.isActive()) {
 				txn.rollback();
 			}
 		}
+		afterUnregister(oldKey, oldId, delta);
+	}
+
+	// 登録済みのデバイスのキャッシュに含まれているか確認します。
+	static boolean isRegistered(Key key) {
+		return registered.get(key.getName()) != null;
+	}
+
+	// 登録のトランザクションをコミットした後に、キャッシュとデバイス数のカウンターを更新し、古い形式のエンティティを削除します。
+	// 既に登録されていた場合はキャッシュだけを更新します。
+	static void afterRegister(Key key, String regId, boolean created) {
+		if (created) {
+			DeviceCounter.add(1);
+		}
+		registered.put(key.getName(), Boolean.TRUE);
+		if (created) {
+			deleteLegacyDevices(Collections.singleton(regId));
+		}
+	}
+
+	// 登録解除・更新のトランザクションをコミットした後に、キャッシュとデバイス数のカウンターを更新し、古い形式のエンティティを削除します。
+	static void afterUnregister(Key key, String regId, int delta) {
+		registered.remove(key.getName());
+		DeviceCounter.add(delta);
+		deleteLegacyDevices(Collections.singleton(regId));
 	}
 
 	/**
-	 * Gets all registered devices.
+	 * Applies registry changes reported by GCM in one batch: new registration
+	 * ids are stored with one batch put and stale ones removed with one batch
+	 * delete.
+	 *
+	 * @param canonicalIds
+	 *            new registration ids keyed by the old ones.
+	 * @param unregistered
+	 *            registration ids of the devices to unregister.
 	 */
-	// 現在登録されている全てのレジストレーションIDを取得しリスト形式で返す処理です。
-	public static List<String> getDevices() {
-		logger.info("getDevices()");
-		List<String> devices;
-		Transaction txn = datastore.beginTransaction();
-		try {
-			// キーを取得したいエンティティーが格納されているカインド名を引数に、Queryクラスのインスタンスを生成しています。
-			Query query = new Query(DEVICE_TYPE);
-			// Iterableインタフェースを実装すると、オブジェクトを「foreach」文の対象にすることができます。
-			// foreach文（フォーイーチ文）とはプログラミング言語においてリストやハッシュテーブルなどの
-			// データ構造の各要素に対して与えられた文の実行を繰り返すというループを記述するための文です。
-			Iterable<Entity> entities = datastore.prepare(query).asIterable(DEFAULT_FETCH_OPTIONS);
-			devices = new ArrayList<String>();
-			
-			for (Entity entity : entities) {
-				String device = (String) entity
-						.getProperty(DEVICE_REG_ID_PROPERTY);
-				devices.add(device);
+	// 送信結果ごとにトランザクションを発行せず、まとめて登録・削除する処理です。
+	// キーはレジストレーションIDから求まるため、検索せずに書き込むことができます。
+	public static void applyRegistryChanges(Map<String, String> canonicalIds,
+			Collection<String> unregistered) {
+		log.log(Level.FINE, "applyRegistryChanges");
+		Set<String> removed = new HashSet<String>(unregistered);
+		removed.addAll(canonicalIds.keySet());
+
+		Map<Key, Entity> created = new HashMap<Key, Entity>();
+		for (String newId : canonicalIds.values()) {
+			if (!removed.contains(newId)) {
+				Key key = deviceKey(newId);
+				created.put(key, newDevice(key, newId));
 			}
-			txn.commit();
-		} finally {
-			if (txn.isActive()) {
-				txn.rollback();
+		}
+		List<Key> deleted = new ArrayList<Key>(removed.size());
+		for (String regId : removed) {
+			deleted.add(deviceKey(regId));
+		}
+		// デバイス数のカウンターを更新するため、書き込む前に登録済みかどうかをまとめて確認します。
+		List<Key> keys = new ArrayList<Key>(created.keySet());
+		keys.addAll(deleted);
+		Map<Key, Entity> existing = datastore.get(keys);
+		int delta = 0;
+		for (Key key : created.keySet()) {
+			if (!existing.containsKey(key)) {
+				delta++;
 			}
 		}
-		return devices;
+		for (Key key : deleted) {
+			if (existing.containsKey(key)) {
+				delta--;
+			}
+		}
+		// 新しいIDを先に保存し、途中で失敗しても端末が登録されていない状態にならないようにします。
+		if (!created.isEmpty()) {
+			datastore.put(created.values());
+		}
+		if (!deleted.isEmpty()) {
+			datastore.delete(deleted);
+		}
+		// キャッシュはキーごとではなく、1回の呼び出しでまとめて削除します。
+		CacheUtilities.removeAll(DEVICE_TYPE, keyNames(deleted));
+		DeviceCounter.add(delta);
+		deleteLegacyDevices(removed);
+		log.log(Level.INFO, "applyRegistryChanges", "stored", created.size(),
+				"deleted", deleted.size());
 	}
 
 	/**
-	 * Gets the number of total devices.
+	 * Registers several devices with one batch get and one batch put.
+	 *
+	 * @param regIds
+	 *            registration ids of the devices, at most
+	 *            {@link #MAX_BATCH_SIZE}.
+	 * @return the registration ids that were not registered yet.
 	 */
-	// 現在登録されているデバイス数を返す処理です。
-	public static int getTotalDevices() {
-		logger.info("getTotalDevices()");
-		Transaction txn = datastore.beginTransaction();
-		try {
-			Query query = new Query(DEVICE_TYPE).setKeysOnly();
-			List<Entity> allKeys = datastore.prepare(query).asList(
-					DEFAULT_FETCH_OPTIONS);
-			int total = allKeys.size();
-			logger.fine("Total number of devices: " + total);
-			txn.commit();
-			return total;
-		} finally {
-			if (txn.isActive()) {
-				txn.rollback();
+	// 移行やバックアップからの復元で大量のレジストレーションIDを登録する処理です。
+	// 1件ずつトランザクションを発行せず、登録済みかどうかをまとめて確認してから未登録のものだけを書き込みます。
+	public static Set<String> registerAll(Collection<String> regIds) {
+		log.log(Level.FINE, "registerAll");
+		Map<Key, String> keys = toDeviceKeys(regIds);
+		Map<Key, Entity> existing = datastore.get(keys.keySet());
+		List<Entity> created = new ArrayList<Entity>(keys.size() - existing.size());
+		Set<String> added = new HashSet<String>();
+		for (Map.Entry<Key, String> entry : keys.entrySet()) {
+			if (!existing.containsKey(entry.getKey())) {
+				created.add(newDevice(entry.getKey(), entry.getValue()));
+				added.add(entry.getValue());
 			}
 		}
+		if (!created.isEmpty()) {
+			datastore.put(created);
+			DeviceCounter.add(created.size());
+		}
+		// キャッシュはキーごとではなく、1回の呼び出しでまとめて保存します。
+		Map<String, Boolean> names = new HashMap<String, Boolean>(keys.size() * 2);
+		for (Key key : keys.keySet()) {
+			names.put(key.getName(), Boolean.TRUE);
+		}
+		registered.putAll(names);
+		deleteLegacyDevices(keys.values());
+		log.log(Level.INFO, "registerAll", "registered", created.size(), "total",
+				keys.size());
+		return added;
+	}
+
+	/**
+	 * Unregisters several devices with one batch get and one batch delete.
+	 *
+	 * @param regIds
+	 *            registration ids of the devices, at most
+	 *            {@link #MAX_BATCH_SIZE}.
+	 * @return the registration ids that were registered.
+	 */
+	// 大量のレジストレーションIDの登録をまとめて解除する処理です。
+	public static Set<String> unregisterAll(Collection<String> regIds) {
+		log.log(Level.FINE, "unregisterAll");
+		Map<Key, String> keys = toDeviceKeys(regIds);
+		Map<Key, Entity> existing = datastore.get(keys.keySet());
+		Set<String> removed = new HashSet<String>();
+		for (Key key : existing.keySet()) {
+			removed.add(keys.get(key));
+		}
+		if (!existing.isEmpty()) {
+			datastore.delete(existing.keySet());
+			DeviceCounter.add(-existing.size());
+		}
+		CacheUtilities.removeAll(DEVICE_TYPE, keyNames(keys.keySet()));
+		deleteLegacyDevices(keys.values());
+		log.log(Level.INFO, "unregisterAll", "unregistered", removed.size(),
+				"total", keys.size());
+		return removed;
+	}
+
+	// 登録済みのデバイスのキャッシュで使用するキー名のリストを返します。
+	private static List<String> keyNames(Collection<Key> keys) {
+		List<String> names = new ArrayList<String>(keys.size());
+		for (Key key : keys) {
+			names.add(key.getName());
+		}
+		return names;
+	}
+
+	// レジストレーションIDをキーに変換します。重複したIDは1つにまとめます。
+	private static Map<Key, String> toDeviceKeys(Collection<String> regIds) {
+		if (regIds.size() > MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("Too many registration ids: "
+					+ regIds.size());
+		}
+		Map<Key, String> keys = new LinkedHashMap<Key, String>();
+		for (String regId : regIds) {
+			keys.put(deviceKey(regId), regId);
+		}
+		return keys;
 	}
 
-	// レジストレーションIDから一致するエンティティ（レコード(行)）を返す処理です。？
-	private static Entity findDeviceByRegId(String regId) {
-		logger.info("findDeviceByRegId()");
-		Query query = new Query(DEVICE_TYPE).addFilter(DEVICE_REG_ID_PROPERTY,
-				FilterOperator.EQUAL, regId);
-		// Queryクラスからエンティティーを取得するには、QueryのインスタンスからPreparedQueryクラスのインスタンスを生成します。
-		PreparedQuery preparedQuery = datastore.prepare(query);
-		List<Entity> entities = preparedQuery.asList(DEFAULT_FETCH_OPTIONS);// 1000件超えた時はどうなる？→ダミーデータを2000入れた時は特に問題なかった
+	/**
+	 * Rewrites a batch of devices registered with the legacy layout (numeric
+	 * ids and an indexed {@code regId} property) so that they are keyed by
+	 * their registration id. Duplicated registrations are merged.
+	 *
+	 * @param cursor
+	 *            web-safe cursor returned by the previous batch, or
+	 *            {@code null} to start from the beginning.
+	 * @param limit
+	 *            maximum number of legacy devices to rewrite.
+	 * @return cursor to the next batch, or {@code null} if the migration is
+	 *         complete.
+	 */
+	// 新しい形式ではregIdプロパティにインデックスを作成しないため、regIdで並べ替えたクエリには古い形式のエンティティだけが含まれます。
+	// 並べ替えにより重複した登録は連続して読み込まれ、同じキーのエンティティにまとめられます。
+	public static String migrateDevices(String cursor, int limit) {
+		log.log(Level.FINE, "migrateDevices");
+		FetchOptions options = FetchOptions.Builder.withLimit(limit).chunkSize(limit);
+		if (cursor != null) {
+			options.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		Query query = new Query(DEVICE_TYPE).addSort(DEVICE_REG_ID_PROPERTY);
+		QueryResultList<Entity> entities = datastore.prepare(query)
+				.asQueryResultList(options);
+
+		Map<Key, Entity> created = new HashMap<Key, Entity>();
+		List<Key> deleted = new ArrayList<Key>(entities.size());
+		for (Entity entity : entities) {
+			String regId = (String) entity.getProperty(DEVICE_REG_ID_PROPERTY);
+			Key key = deviceKey(regId);
+			if (entity.getKey().equals(key)) {
+				continue;
+			}
+			created.put(key, newDevice(key, regId));
+			deleted.add(entity.getKey());
+		}
+		int delta = -deleted.size();
+		if (!created.isEmpty()) {
+			delta += created.size() - datastore.get(created.keySet()).size();
+			datastore.put(created.values());
+		}
+		if (!deleted.isEmpty()) {
+			datastore.delete(deleted);
+		}
+		DeviceCounter.add(delta);
+		log.log(Level.INFO, "migrateDevices", "legacy", deleted.size(), "migrated",
+				created.size());
+
+		if (entities.size() < limit) {
+			Entity completed = new Entity(MIGRATION_KEY);
+			completed.setUnindexedProperty(MIGRATION_COMPLETED_PROPERTY, new Date());
+			datastore.put(completed);
+			migrated = true;
+			log.log(Level.INFO, "deviceMigrationCompleted");
+			return null;
+		}
+		return entities.getCursor().toWebSafeString();
+	}
 
-		//		for(Entity empEntity : preparedQuery.asIterable()){// 1000件以上取得する場合には拡張for分で全件取得する？
-		//		     System.out.println(
-		//		          empEntity.getKind() + " - " + empEntity.getKey() );
-		//		}
+	// 古い形式(数値のID)で登録された同じレジストレーションIDのエンティティを削除します。
+	// 移行が完了した後はクエリを発行しません。
+	private static void deleteLegacyDevices(Collection<String> regIds) {
+		if (regIds.isEmpty() || isMigrated()) {
+			return;
+		}
+		List<Key> legacy = new ArrayList<Key>();
+		for (Map.Entry<String, List<Entity>> entry : findDevicesByRegIds(regIds)
+				.entrySet()) {
+			Key key = deviceKey(entry.getKey());
+			for (Entity entity : entry.getValue()) {
+				if (!entity.getKey().equals(key)) {
+					legacy.add(entity.getKey());
+				}
+			}
+		}
+		if (!legacy.isEmpty()) {
+			datastore.delete(legacy);
+			DeviceCounter.add(-legacy.size());
+			log.log(Level.INFO, "deleteLegacyDevices", "deleted", legacy.size());
+		}
+	}
 
-		Entity entity = null;
-		if (!entities.isEmpty()) {
-			entity = entities.get(0);
+	// 古い形式のエンティティの移行が完了しているか確認します。完了した後はデータストアを確認しません。
+	private static boolean isMigrated() {
+		if (!migrated) {
+			try {
+				datastore.get(MIGRATION_KEY);
+				migrated = true;
+			} catch (EntityNotFoundException e) {
+				return false;
+			}
 		}
-		int size = entities.size();
-		if (size > 0) {
-			logger.severe("Found " + size + " entities for regId " + regId
-					+ ": " + entities);
+		return true;
+	}
+
+	/**
+	 * Returns the key of the device with the given registration id.
+	 */
+	// レジストレーションIDをキー名にしたDeviceのキーを返します。
+	// キー名の上限(500バイト)を超える場合は、レジストレーションIDのハッシュ値をキー名にします。
+	static Key deviceKey(String regId) {
+		String name = regId;
+		try {
+			if (regId.getBytes("UTF-8").length > MAX_KEY_NAME_BYTES) {
+				name = HASHED_KEY_PREFIX + PageFingerprint.hash(regId);
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
 		}
+		return KeyFactory.createKey(DEVICE_TYPE, name);
+	}
+
+	// 新しい形式のDeviceを作成します。regIdはキーで検索するため、インデックスを作成しません。
+	static Entity newDevice(Key key, String regId) {
+		Entity entity = new Entity(key);
+		// setProperty()メソッドの第一引数はプロパティー名、第２引数はプロパティーの値そのものです。
+		entity.setUnindexedProperty(DEVICE_REG_ID_PROPERTY, regId);// レジストレーションIDというプロパティ（カラム）とその要素を格納します。
 		return entity;
 	}
 
+	// レジストレーションIDから一致する古い形式のエンティティを、IN条件の上限ごとにまとめて検索します。
+	private static Map<String, List<Entity>> findDevicesByRegIds(
+			Collection<String> regIds) {
+		Map<String, List<Entity>> devices = new HashMap<String, List<Entity>>();
+		List<String> values = new ArrayList<String>(regIds);
+		for (int from = 0; from < values.size(); from += MAX_IN_VALUES) {
+			List<String> partial = values.subList(from,
+					Math.min(from + MAX_IN_VALUES, values.size()));
+			Query query = new Query(DEVICE_TYPE).addFilter(DEVICE_REG_ID_PROPERTY,
+					FilterOperator.IN, new ArrayList<String>(partial));
+			for (Entity entity : datastore.prepare(query).asIterable(
+					DEFAULT_FETCH_OPTIONS)) {
+				String regId = (String) entity.getProperty(DEVICE_REG_ID_PROPERTY);
+				List<Entity> entities = devices.get(regId);
+				if (entities == null) {
+					entities = new ArrayList<Entity>(1);
+					devices.put(regId, entities);
+				}
+				entities.add(entity);
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * Gets the key range covered by the next {@link #MULTICAST_SIZE}
+	 * registered devices.
+	 *
+	 * @param cursor
+	 *            web-safe cursor returned by the previous range, or
+	 *            {@code null} to start from the beginning.
+	 * @param startKey
+	 *            encoded key of the first device (inclusive), or {@code null}.
+	 * @param endKey
+	 *            encoded key ending the search (exclusive), or {@code null}.
+	 * @return the range, or {@code null} if there are no more devices.
+	 */
+	// クエリカーソルを使用して、登録されているデバイスを1000件ずつキーだけで読み込み、その範囲を返す処理です。
+	// 全件をメモリに読み込まないため、登録数が増えてもリクエストあたりのメモリ使用量は一定になります。
+	public static DeviceRange getDeviceRange(String cursor, String startKey,
+			String endKey) {
+		log.log(Level.FINE, "getDeviceRange");
+		FetchOptions options = FetchOptions.Builder.withLimit(MULTICAST_SIZE)
+				.chunkSize(MULTICAST_SIZE);
+		if (cursor != null) {
+			options.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		Query query = newKeyRangeQuery(startKey, endKey, false).setKeysOnly();
+		QueryResultList<Entity> entities = datastore.prepare(query)
+				.asQueryResultList(options);
+		if (entities.isEmpty()) {
+			return null;
+		}
+		// 1000件取得できた場合は続きがある可能性があるため、次の範囲のカーソルを返します。
+		String next = null;
+		if (entities.size() == MULTICAST_SIZE) {
+			next = entities.getCursor().toWebSafeString();
+		}
+		return new DeviceRange(
+				KeyFactory.keyToString(entities.get(0).getKey()),
+				KeyFactory.keyToString(entities.get(entities.size() - 1).getKey()),
+				entities.size(), next);
+	}
+
+	/**
+	 * Gets the registered devices in a range returned by
+	 * {@link #getDeviceRange(String, String, String)}.
+	 *
+	 * @param firstKey
+	 *            encoded key of the first device (inclusive).
+	 * @param lastKey
+	 *            encoded key of the last device (inclusive).
+	 */
+	// キーの範囲を指定して、登録されているレジストレーションIDを取得する処理です。
+	public static List<String> getDevices(String firstKey, String lastKey) {
+		log.log(Level.FINE, "getDevices");
+		Query query = newKeyRangeQuery(firstKey, lastKey, true);
+		List<String> devices = new ArrayList<String>(MULTICAST_SIZE);
+		for (Entity entity : datastore.prepare(query).asIterable(
+				DEFAULT_FETCH_OPTIONS)) {
+			devices.add((String) entity.getProperty(DEVICE_REG_ID_PROPERTY));
+		}
+		return devices;
+	}
+
+	// キーの範囲を指定してDeviceを検索するクエリを作成します。
+	private static Query newKeyRangeQuery(String startKey, String endKey,
+			boolean endInclusive) {
+		Query query = new Query(DEVICE_TYPE);
+		if (startKey != null) {
+			query.addFilter(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.GREATER_THAN_OR_EQUAL,
+					KeyFactory.stringToKey(startKey));
+		}
+		if (endKey != null) {
+			query.addFilter(Entity.KEY_RESERVED_PROPERTY,
+					endInclusive ? FilterOperator.LESS_THAN_OR_EQUAL
+							: FilterOperator.LESS_THAN,
+					KeyFactory.stringToKey(endKey));
+		}
+		return query;
+	}
+
+	/**
+	 * Gets keys that split the registered devices into ranges of roughly the
+	 * same size, using the datastore's scatter property.
+	 *
+	 * @param shards
+	 *            maximum number of ranges.
+	 * @return encoded split keys in ascending order; empty if there are too
+	 *         few devices to be worth splitting.
+	 */
+	// __scatter__プロパティ(一部のエンティティにランダムに付与される値)で並べ替えたキーを標本として取得し、
+	// キーの順に並べて等間隔に選ぶことで、デバイスの範囲をほぼ同じ件数に分割するキーを求めます。
+	public static List<String> getDeviceSplitKeys(int shards) {
+		log.log(Level.FINE, "getDeviceSplitKeys");
+		if (shards < 2) {
+			return Collections.emptyList();
+		}
+		Query query = new Query(DEVICE_TYPE).addSort(
+				Entity.SCATTER_RESERVED_PROPERTY).setKeysOnly();
+		List<Entity> samples = datastore.prepare(query).asList(
+				FetchOptions.Builder.withLimit((shards - 1) * SCATTER_OVERSAMPLING));
+		List<Key> keys = new ArrayList<Key>(samples.size());
+		for (Entity entity : samples) {
+			keys.add(entity.getKey());
+		}
+		Collections.sort(keys);
+
+		int splits = Math.min(shards - 1, keys.size() / SCATTER_OVERSAMPLING);
+		List<String> splitKeys = new ArrayList<String>(splits);
+		for (int i = 1; i <= splits; i++) {
+			splitKeys.add(KeyFactory.keyToString(keys.get(i * keys.size()
+					/ (splits + 1))));
+		}
+		return splitKeys;
+	}
+
+	/**
+	 * Gets the number of total devices.
+	 */
+	// 現在登録されているデバイス数を返す処理です。
+	public static int getTotalDevices() {
+		log.log(Level.FINE, "getTotalDevices");
+		// 全件を数えずに、登録・解除の際に更新しているカウンターの値を返します。
+		return DeviceCounter.get();
+	}
+
 	/**
 	 * Creates a persistent record with the devices to be notified using a
 	 * multicast message.
@@ -239,104 +684,331 @@ public final class Datastore {
 	// http://docs.oracle.com/javase/jp/6/api/java/net/MulticastSocket.html
 	// https://developers.google.com/appengine/docs/java/javadoc/com/google/appengine/api/datastore/KeyFactory#keyToString(com.google.appengine.api.datastore.Key)
 	public static String createMulticast(List<String> devices) {// 引数は全てのレジストレーションIDです。
-		logger.info("createMulticast()");
-		logger.info("Storing multicast for " + devices.size() + " devices");
-		String encodedKey;
-		Transaction txn = datastore.beginTransaction();
-		try {
-			Entity entity = new Entity(MULTICAST_TYPE);
-			entity.setProperty(MULTICAST_REG_IDS_PROPERTY, devices);// レジストレーションIDというプロパティ（カラム）とその要素を格納します。？
-			datastore.put(entity);
-			Key key = entity.getKey();// 該当のエンティティを示すキー（プライマリキー）を返します。
-			encodedKey = KeyFactory.keyToString(key);// keyを指定してWebセーフ文字列表現に変換します。
-			logger.fine("multicast key: " + encodedKey);
-			txn.commit();
-		} finally {
-			if (txn.isActive()) {
-				txn.rollback();
-			}
-		}
+		return createMulticast(devices,
+				Collections.<Integer> nCopies(devices.size(), 0));
+	}
+
+	/**
+	 * Creates a persistent record with the devices to be notified using a
+	 * multicast message, along with the number of attempts already made for
+	 * each of them.
+	 *
+	 * @param devices
+	 *            registration ids of the devices.
+	 * @param attempts
+	 *            attempts made for each device, in the same order.
+	 * @return encoded key for the persistent record.
+	 */
+	public static String createMulticast(List<String> devices,
+			List<Integer> attempts) {
+		// 1件のputは単独でアトミックなため、トランザクションは使用しません。
+		Entity entity = newMulticast(devices, attempts);
+		datastore.put(entity);
+		Key key = entity.getKey();// 該当のエンティティを示すキー（プライマリキー）を返します。
+		String encodedKey = KeyFactory.keyToString(key);// keyを指定してWebセーフ文字列表現に変換します。
+		log.log(Level.FINE, "createMulticast", "devices", devices.size(), "key", encodedKey);
+		cacheMulticast(encodedKey, devices, attempts);
 		return encodedKey;
 	}
 
+	// Multicastエンティティを作成します。
+	// 送信先はリスト型のプロパティではなく、エンコードしたBlobとして保存します。(インデックスの書き込みが発生しません)
+	static Entity newMulticast(List<String> devices, List<Integer> attempts) {
+		Entity entity = new Entity(MULTICAST_TYPE);
+		entity.setProperty(MULTICAST_CREATED_PROPERTY, new Date());
+		entity.setUnindexedProperty(MULTICAST_RECIPIENTS_PROPERTY,
+				new Blob(RecipientCodec.encode(devices, attempts)));
+		return entity;
+	}
+
+	// memcacheの値の上限(1MB)を超えないように、1回のマルチキャストの上限以下の場合だけ保存します。
+	static void cacheMulticast(String encodedKey, List<String> devices,
+			List<Integer> attempts) {
+		if (devices.size() <= MULTICAST_SIZE) {
+			multicasts.put(encodedKey, new PendingMulticast(devices, attempts));
+		}
+	}
+
 	/**
 	 * Gets a persistent record with the devices to be notified using a
-	 * multicast message.
-	 * 
+	 * multicast message and the attempts already made for each of them.
+	 *
 	 * @param encodedKey
 	 *            encoded key for the persistent record.
+	 * @return the record, or {@code null} if it does not exist.
 	 */
-	public static List<String> getMulticast(String encodedKey) {
-		logger.info("getMulticast()");
+	public static PendingMulticast getPendingMulticast(String encodedKey) {
+		log.log(Level.FINE, "getPendingMulticast");
+		PendingMulticast cached = (PendingMulticast) multicasts.get(encodedKey);
+		if (cached != null) {
+			return cached;
+		}
 		Key key = KeyFactory.stringToKey(encodedKey);
 		Entity entity;
-		Transaction txn = datastore.beginTransaction();
 		try {
 			entity = datastore.get(key);
-			@SuppressWarnings("unchecked")
-			List<String> devices = (List<String>) entity
-					.getProperty(MULTICAST_REG_IDS_PROPERTY);
-			txn.commit();
-			return devices;
 		} catch (EntityNotFoundException e) {
-			logger.severe("No entity for key " + key);
-			return Collections.emptyList();
-		} finally {
-			if (txn.isActive()) {
-				txn.rollback();
-			}
+			log.log(Level.SEVERE, "noMulticast", "key", key);
+			return null;
 		}
+		PendingMulticast pending = toPendingMulticast(entity);
+		multicasts.put(encodedKey, pending);
+		return pending;
+	}
+
+	// Multicastエンティティから送信先と送信を試みた回数を読み込みます。
+	// 送信を試みた回数を保存していない古いエンティティは、全ての端末を0回として扱います。
+	@SuppressWarnings("unchecked")
+	static PendingMulticast toPendingMulticast(Entity entity) {
+		Blob recipients = (Blob) entity.getProperty(MULTICAST_RECIPIENTS_PROPERTY);
+		if (recipients != null) {
+			return RecipientCodec.decode(recipients.getBytes());
+		}
+		// リスト型のプロパティで保存された古い形式のエンティティです。
+		List<String> devices = (List<String>) entity
+				.getProperty(MULTICAST_REG_IDS_PROPERTY);
+		if (devices == null) {
+			devices = Collections.emptyList();
+		}
+		List<Long> stored = (List<Long>) entity
+				.getProperty(MULTICAST_ATTEMPTS_PROPERTY);
+		List<Integer> attempts = new ArrayList<Integer>(devices.size());
+		for (int i = 0; i < devices.size(); i++) {
+			attempts.add(stored != null && i < stored.size() ? stored.get(i)
+					.intValue() : 0);
+		}
+		return new PendingMulticast(devices, attempts);
 	}
 
 	/**
-	 * Updates a persistent record with the devices to be notified using a
+	 * Deletes a persistent record with the devices to be notified using a
 	 * multicast message.
 	 * 
 	 * @param encodedKey
 	 *            encoded key for the persistent record.
-	 * @param devices
-	 *            new list of registration ids of the devices.
 	 */
-	public static void updateMulticast(String encodedKey, List<String> devices) {
-		logger.info("updateMulticast()");
-		Key key = KeyFactory.stringToKey(encodedKey);
-		Entity entity;
-		Transaction txn = datastore.beginTransaction();
-		try {
+	public static void deleteMulticast(String encodedKey) {
+		log.log(Level.FINE, "deleteMulticast");
+		multicasts.remove(encodedKey);
+		datastore.delete(KeyFactory.stringToKey(encodedKey));
+	}
+
+	/**
+	 * Deletes a batch of multicast records created before the given time.
+	 * <p>
+	 * Records are normally deleted by the task that sends them; the ones left
+	 * behind by dropped tasks are found with a keys-only query on their
+	 * creation time.
+	 *
+	 * @param cutoff
+	 *            records created before this time are deleted.
+	 * @param cursor
+	 *            web-safe cursor returned by the previous call, or
+	 *            {@code null} to start from the oldest record.
+	 * @param limit
+	 *            maximum number of records to delete.
+	 */
+	// タスクが破棄されて削除されずに残ったMulticastエンティティを、作成日時で検索して削除します。
+	// 作成日時を保存していない古いエンティティは、backfillMulticastsで作成日時を補完した後に対象になります。
+	public static MulticastSweep sweepMulticasts(Date cutoff, String cursor,
+			int limit) {
+		log.log(Level.FINE, "sweepMulticasts");
+		FetchOptions options = FetchOptions.Builder.withLimit(limit).chunkSize(limit);
+		if (cursor != null) {
+			options.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		Query query = new Query(MULTICAST_TYPE).addFilter(
+				MULTICAST_CREATED_PROPERTY, FilterOperator.LESS_THAN, cutoff)
+				.setKeysOnly();
+		QueryResultList<Entity> entities = datastore.prepare(query)
+				.asQueryResultList(options);
+		List<Key> keys = new ArrayList<Key>(entities.size());
+		for (Entity entity : entities) {
+			keys.add(entity.getKey());
+			multicasts.remove(KeyFactory.keyToString(entity.getKey()));
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(keys);
+		}
+		String nextCursor = entities.size() < limit ? null : entities.getCursor()
+				.toWebSafeString();
+		return new MulticastSweep(keys.size(), nextCursor);
+	}
+
+	/**
+	 * Sets the creation time of a batch of multicast records stored before it
+	 * was recorded, so that {@link #sweepMulticasts(Date, String, int)}
+	 * deletes them once they are old enough. Does nothing once every record
+	 * has been handled.
+	 *
+	 * @param cursor
+	 *            web-safe cursor returned by the previous batch, or
+	 *            {@code null} to start from the beginning.
+	 * @param limit
+	 *            maximum number of records to read.
+	 * @return cursor to the next batch, or {@code null} if the backfill is
+	 *         complete.
+	 */
+	// 古い形式のMulticastは送信先をインデックスを作成したregIdsプロパティに保存しているため、
+	// regIdsで並べ替えたクエリには古い形式のエンティティだけが含まれます。
+	// 本当の作成日時はわからないため現在の日時を設定し、送信中のエンティティも通常と同じ期間が過ぎてから削除されるようにします。
+	public static String backfillMulticasts(String cursor, int limit) {
+		log.log(Level.FINE, "backfillMulticasts");
+		if (cursor == null && isMulticastsBackfilled()) {
+			return null;
+		}
+		FetchOptions options = FetchOptions.Builder.withLimit(limit).chunkSize(limit);
+		if (cursor != null) {
+			options.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		Query query = new Query(MULTICAST_TYPE).addSort(MULTICAST_REG_IDS_PROPERTY);
+		QueryResultList<Entity> entities = datastore.prepare(query)
+				.asQueryResultList(options);
+
+		Date now = new Date();
+		List<Entity> updated = new ArrayList<Entity>(entities.size());
+		for (Entity entity : entities) {
+			if (!entity.hasProperty(MULTICAST_CREATED_PROPERTY)) {
+				entity.setProperty(MULTICAST_CREATED_PROPERTY, now);
+				updated.add(entity);
+			}
+		}
+		// 同時に送信のタスクが削除したエンティティを書き戻した場合も、作成日時があるため後で削除されます。
+		if (!updated.isEmpty()) {
+			datastore.put(updated);
+		}
+		log.log(Level.INFO, "backfillMulticasts", "read", entities.size(), "updated",
+				updated.size());
+
+		if (entities.size() < limit) {
+			Entity completed = new Entity(MULTICAST_BACKFILL_KEY);
+			completed.setUnindexedProperty(MIGRATION_COMPLETED_PROPERTY, now);
+			datastore.put(completed);
+			multicastsBackfilled = true;
+			log.log(Level.INFO, "multicastBackfillCompleted");
+			return null;
+		}
+		return entities.getCursor().toWebSafeString();
+	}
+
+	// 古い形式のMulticastの補完が完了しているか確認します。完了した後はデータストアを確認しません。
+	private static boolean isMulticastsBackfilled() {
+		if (!multicastsBackfilled) {
 			try {
-				entity = datastore.get(key);
+				datastore.get(MULTICAST_BACKFILL_KEY);
+				multicastsBackfilled = true;
 			} catch (EntityNotFoundException e) {
-				logger.severe("No entity for key " + key);
-				return;
-			}
-			entity.setProperty(MULTICAST_REG_IDS_PROPERTY, devices);
-			datastore.put(entity);
-			txn.commit();
-		} finally {
-			if (txn.isActive()) {
-				txn.rollback();
+				return false;
 			}
 		}
+		return true;
 	}
 
 	/**
-	 * Deletes a persistent record with the devices to be notified using a
-	 * multicast message.
-	 * 
-	 * @param encodedKey
-	 *            encoded key for the persistent record.
+	 * Result of {@link Datastore#sweepMulticasts(Date, String, int)}.
 	 */
-	public static void deleteMulticast(String encodedKey) {
-		logger.info("deleteMulticast()");
-		Transaction txn = datastore.beginTransaction();
-		try {
-			Key key = KeyFactory.stringToKey(encodedKey);
-			datastore.delete(key);
-			txn.commit();
-		} finally {
-			if (txn.isActive()) {
-				txn.rollback();
-			}
+	public static final class MulticastSweep {
+
+		private final int deleted;
+		private final String nextCursor;
+
+		MulticastSweep(int deleted, String nextCursor) {
+			this.deleted = deleted;
+			this.nextCursor = nextCursor;
+		}
+
+		/**
+		 * Number of records deleted.
+		 */
+		public int getDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * Web-safe cursor to the next batch, or {@code null} if there are no
+		 * more stale records.
+		 */
+		public String getNextCursor() {
+			return nextCursor;
+		}
+	}
+
+	/**
+	 * Devices still to be notified by a multicast message and the attempts
+	 * already made for each of them.
+	 */
+	@SuppressWarnings("serial")
+	public static final class PendingMulticast implements Serializable {
+
+		private final List<String> devices;
+		private final List<Integer> attempts;
+
+		PendingMulticast(List<String> devices, List<Integer> attempts) {
+			// memcacheに保存できるように、シリアライズ可能なリストにコピーします。
+			this.devices = new ArrayList<String>(devices);
+			this.attempts = new ArrayList<Integer>(attempts);
+		}
+
+		/**
+		 * Registration ids of the devices.
+		 */
+		public List<String> getDevices() {
+			return devices;
+		}
+
+		/**
+		 * Attempts made for each device, in the same order.
+		 */
+		public List<Integer> getAttempts() {
+			return attempts;
+		}
+	}
+
+	/**
+	 * A range of at most {@link #MULTICAST_SIZE} registered devices and the
+	 * cursor to the next range.
+	 */
+	public static final class DeviceRange {
+
+		private final String firstKey;
+		private final String lastKey;
+		private final int size;
+		private final String nextCursor;
+
+		DeviceRange(String firstKey, String lastKey, int size, String nextCursor) {
+			this.firstKey = firstKey;
+			this.lastKey = lastKey;
+			this.size = size;
+			this.nextCursor = nextCursor;
+		}
+
+		/**
+		 * Encoded key of the first device in the range (inclusive).
+		 */
+		public String getFirstKey() {
+			return firstKey;
+		}
+
+		/**
+		 * Encoded key of the last device in the range (inclusive).
+		 */
+		public String getLastKey() {
+			return lastKey;
+		}
+
+		/**
+		 * Number of devices in the range when it was read.
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * Web-safe cursor to the next range, or {@code null} if this is the
+		 * last one.
+		 */
+		public String getNextCursor() {
+			return nextCursor;
 		}
 	}
 
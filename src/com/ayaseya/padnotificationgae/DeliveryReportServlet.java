@@ -0,0 +1,52 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Servlet that returns the latency percentiles of each delivery stage of a
+ * change event as JSON.
+ * <p>
+ * The event is given by the {@value SendMessageServlet#PARAMETER_EVENT}
+ * parameter; the latest event is reported when it is omitted. Mapped to
+ * {@code /admin/deliveryReport}, which requires an administrator.
+ */
+// 変更内容ごとに、検出から配信までの各段階の所要時間のパーセンタイルをJSONで返すサーブレットです。
+@SuppressWarnings("serial")
+public class DeliveryReportServlet extends BaseServlet {
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		String eventKey = req.getParameter(SendMessageServlet.PARAMETER_EVENT);
+		ChangeEvent event = isEmptyOrNull(eventKey) ? ChangeEvent.loadLatest()
+				: ChangeEvent.load(eventKey.trim());
+		if (event == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("event", event.getKey());
+		json.put("detected", new Date(event.getCreated()).toString());
+		json.put("announcements", event.getUrls().size());
+		json.put("stages", DeliveryTracker.report(event.getKey()));
+		byte[] body = JSONValue.toJSONString(json).getBytes("UTF-8");
+		setSuccess(resp, body.length);
+		resp.setContentType("application/json; charset=UTF-8");
+		resp.getOutputStream().write(body);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		doGet(req, resp);
+	}
+
+}
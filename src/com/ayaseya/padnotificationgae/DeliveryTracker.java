@@ -0,0 +1,196 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Collects the latency of each stage between the detection of a change and
+ * its delivery, keyed by the {@link ChangeEvent} that serves as correlation
+ * id.
+ * <p>
+ * Each request records its samples in a local histogram and saves them as one
+ * {@code DeliveryTiming} entity, a child of the event. {@link #report(String)}
+ * sums the histograms of an event into percentiles per stage.
+ * <p>
+ * Stages:
+ * <ul>
+ * <li>{@value #STAGE_SCRAPE}: start of the scrape to the detection, per
+ * event.</li>
+ * <li>{@value #STAGE_FAN_OUT}: detection to the start of {@code /sendAll},
+ * per event.</li>
+ * <li>{@value #STAGE_QUEUE}: time a {@code /send} task waited in its queue
+ * after its expected start, per task.</li>
+ * <li>{@value #STAGE_SEND}: start of a {@code /send} task to a GCM response,
+ * per request to GCM.</li>
+ * <li>{@value #STAGE_DELIVERY}: detection to the GCM response accepting the
+ * message, per device.</li>
+ * </ul>
+ */
+// 告知の変更を検出してから端末に届くまでの各段階の所要時間を、変更内容(ChangeEvent)ごとに記録するクラスです。
+// リクエストごとにヒストグラムを集計し、変更内容の子エンティティとして1件だけ保存します。
+final class DeliveryTracker {
+
+	static final String STAGE_SCRAPE = "scrape";
+	static final String STAGE_FAN_OUT = "fanOut";
+	static final String STAGE_QUEUE = "queue";
+	static final String STAGE_SEND = "send";
+	static final String STAGE_DELIVERY = "delivery";
+
+	private static final String ENTITY_KIND = "DeliveryTiming";
+	private static final String RECORDED_PROPERTY = "Recorded";
+
+	// ヒストグラムの各バケットの上限値(ミリ秒)です。最後のバケットはこれを超える値を数えます。
+	// リトライは最大で1時間程度かかるため、それより長い範囲まで用意します。
+	private static final long[] BUCKET_BOUNDS = { 100, 200, 500, 1000, 2000,
+			5000, 10 * 1000, 20 * 1000, 30 * 1000, 60 * 1000, 2 * 60 * 1000,
+			5 * 60 * 1000, 10 * 60 * 1000, 30 * 60 * 1000, 60 * 60 * 1000,
+			2 * 60 * 60 * 1000 };
+
+	private static final Logger logger = Logger.getLogger(DeliveryTracker.class.getName());
+
+	private static final DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+
+	private final String eventKey;
+	private final Map<String, long[]> stages = new LinkedHashMap<String, long[]>();
+
+	/**
+	 * @param eventKey
+	 *            encoded key of the event being delivered.
+	 */
+	DeliveryTracker(String eventKey) {
+		this.eventKey = eventKey;
+	}
+
+	/**
+	 * Records one sample of a stage.
+	 */
+	void record(String stage, long millis) {
+		record(stage, millis, 1);
+	}
+
+	/**
+	 * Records {@code count} samples of the same duration, e.g. the devices
+	 * accepted by one multicast.
+	 */
+	void record(String stage, long millis, int count) {
+		if (count <= 0) {
+			return;
+		}
+		long[] buckets = stages.get(stage);
+		if (buckets == null) {
+			buckets = new long[BUCKET_BOUNDS.length + 1];
+			stages.put(stage, buckets);
+		}
+		buckets[bucket(Math.max(0, millis))] += count;
+	}
+
+	/**
+	 * Saves the recorded samples. Failures are logged and ignored so that they
+	 * never fail the delivery itself.
+	 */
+	void save() {
+		if (stages.isEmpty()) {
+			return;
+		}
+		try {
+			Entity entity = new Entity(ENTITY_KIND, KeyFactory.stringToKey(eventKey));
+			entity.setUnindexedProperty(RECORDED_PROPERTY, new Date());
+			for (Map.Entry<String, long[]> entry : stages.entrySet()) {
+				List<Long> counts = new ArrayList<Long>(entry.getValue().length);
+				for (long count : entry.getValue()) {
+					counts.add(count);
+				}
+				entity.setUnindexedProperty(entry.getKey(), counts);
+			}
+			datastore.put(entity);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Could not save delivery timings of "
+					+ eventKey, e);
+		}
+	}
+
+	/**
+	 * Sums the timings saved for an event.
+	 *
+	 * @return for each stage, the number of samples and the approximate
+	 *         p50, p90, p99 and maximum in milliseconds (upper bound of the
+	 *         bucket holding the value).
+	 */
+	static Map<String, Object> report(String eventKey) {
+		Key parent = KeyFactory.stringToKey(eventKey);
+		Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+		for (String stage : Arrays.asList(STAGE_SCRAPE, STAGE_FAN_OUT,
+				STAGE_QUEUE, STAGE_SEND, STAGE_DELIVERY)) {
+			totals.put(stage, new long[BUCKET_BOUNDS.length + 1]);
+		}
+		Query query = new Query(ENTITY_KIND, parent);
+		for (Entity entity : datastore.prepare(query).asIterable(
+				Datastore.DEFAULT_FETCH_OPTIONS)) {
+			for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+				@SuppressWarnings("unchecked")
+				List<Long> counts = (List<Long>) entity.getProperty(entry.getKey());
+				if (counts == null) {
+					continue;
+				}
+				long[] total = entry.getValue();
+				for (int i = 0; i < counts.size() && i < total.length; i++) {
+					total[i] += counts.get(i);
+				}
+			}
+		}
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+			long[] buckets = entry.getValue();
+			long count = 0;
+			for (long n : buckets) {
+				count += n;
+			}
+			Map<String, Object> stage = new LinkedHashMap<String, Object>();
+			stage.put("count", count);
+			stage.put("p50", percentile(buckets, count, 0.50));
+			stage.put("p90", percentile(buckets, count, 0.90));
+			stage.put("p99", percentile(buckets, count, 0.99));
+			stage.put("max", percentile(buckets, count, 1.0));
+			report.put(entry.getKey(), stage);
+		}
+		return report;
+	}
+
+	static int bucket(long millis) {
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			if (millis <= BUCKET_BOUNDS[i]) {
+				return i;
+			}
+		}
+		return BUCKET_BOUNDS.length;
+	}
+
+	// パーセンタイルを、その値が含まれるバケットの上限値で近似します。最後のバケットの場合は-1を返します。
+	static long percentile(long[] buckets, long count, double quantile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * quantile);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return BUCKET_BOUNDS[i];
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import com.google.appengine.api.ThreadManager;
+
+/**
+ * Fetches the announcement detail pages in parallel and extracts their titles.
+ * <p>
+ * The returned titles keep the order of the requested URLs; pages that fail or
+ * do not finish before the deadline are replaced by {@link #PLACEHOLDER_TITLE}.
+ */
+// 告知の詳細ページを並列に取得してタイトルを抜き出すクラスです。
+// GAEではリクエストスレッドからしかスレッドを生成できないため、ThreadManagerのThreadFactoryを使用します。
+final class DetailFetcher {
+
+	// 取得に失敗したページのタイトルの代わりに格納する文字列です。
+	static final String PLACEHOLDER_TITLE = "(タイトルを取得できませんでした)";
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private final int parallelism;
+	private final int timeoutMillis;
+	private final long deadlineMillis;
+
+	/**
+	 * @param parallelism
+	 *            maximum number of pages fetched at the same time.
+	 * @param timeoutMillis
+	 *            connect/read timeout of a single page.
+	 * @param deadlineMillis
+	 *            total time allowed for fetching all pages.
+	 */
+	DetailFetcher(int parallelism, int timeoutMillis, long deadlineMillis) {
+		this.parallelism = Math.max(1, parallelism);
+		this.timeoutMillis = timeoutMillis;
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	/**
+	 * Fetches the titles of the given pages, in the same order as the URLs.
+	 */
+	List<String> fetchTitles(final List<String> urls) {
+		List<String> titles = new ArrayList<String>(urls.size());
+		if (urls.isEmpty()) {
+			return titles;
+		}
+
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>(urls.size());
+		for (final String url : urls) {
+			tasks.add(new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					return fetchTitle(url);
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(parallelism, urls.size()),
+				ThreadManager.currentRequestThreadFactory());
+		try {
+			// invokeAllは期限を過ぎたタスクをキャンセルし、タスクと同じ順番でFutureを返します。
+			List<Future<String>> futures = executor.invokeAll(tasks,
+					deadlineMillis, TimeUnit.MILLISECONDS);
+			for (int i = 0; i < futures.size(); i++) {
+				titles.add(getTitle(futures.get(i), urls.get(i)));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warning("Interrupted while fetching detail pages");
+			while (titles.size() < urls.size()) {
+				titles.add(PLACEHOLDER_TITLE);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return titles;
+	}
+
+	// 完了したFutureからタイトルを取り出します。失敗していた場合はプレースホルダーを返します。
+	private String getTitle(Future<String> future, String url)
+			throws InterruptedException {
+		try {
+			String title = future.get();
+			return title != null ? title : PLACEHOLDER_TITLE;
+		} catch (CancellationException e) {
+			logger.warning("Deadline exceeded while fetching " + url);
+		} catch (ExecutionException e) {
+			logger.warning("Could not fetch " + url + ": " + e.getCause());
+		}
+		return PLACEHOLDER_TITLE;
+	}
+
+	private String fetchTitle(String url) throws IOException {
+		Document news = Jsoup.connect(url).timeout(timeoutMillis).get();
+		return extractTitle(news);
+	}
+
+	/**
+	 * Extracts the announcement title from a detail page.
+	 */
+	static String extractTitle(Document news) {
+		Elements title = news.getElementsByTag("title");
+		String date = "";
+		for (Element tmp : title) {
+			date = date + tmp.text();// 取得したHTMLからテキスト要素のみ取り出します。
+			date = date.replaceAll("｜パズル＆ドラゴンズ", "");// 余計な文字を削除し文字列を整形します。
+			date = date.replaceAll("｜ パズル＆ドラゴンズ", "");// 余計な文字を削除し文字列を整形します。
+		}
+		return date;
+	}
+
+}
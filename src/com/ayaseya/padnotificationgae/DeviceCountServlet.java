@@ -0,0 +1,71 @@
+package com.ayaseya.padnotificationgae;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.*;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+
+/**
+ * Servlet that recounts the registered devices and corrects the
+ * {@link DeviceCounter}.
+ * <p>
+ * Invoked by cron; when the time budget of a request runs out, the count
+ * continues in a task carrying the query cursor and the partial count.
+ */
+// 登録されているデバイスをキーだけで数え直し、デバイス数のカウンターのずれを補正するサーブレットです。
+@SuppressWarnings("serial")
+public class DeviceCountServlet extends BaseServlet {
+
+	static final String PARAMETER_CURSOR = "cursor";
+	static final String PARAMETER_COUNTED = "counted";
+
+	// 1回のリクエストで数えるのに使用する時間(ミリ秒)です。超えた場合は続きをタスクとして登録します。
+	private static final long TIME_BUDGET_MILLIS = 20 * 1000;
+
+	// cronからはGETで、続きのタスクからはPOSTで呼び出されます。
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		doPost(req, resp);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		long deadline = System.currentTimeMillis() + TIME_BUDGET_MILLIS;
+		String cursor = req.getParameter(PARAMETER_CURSOR);
+		if (isEmptyOrNull(cursor)) {
+			cursor = null;
+		}
+		String value = req.getParameter(PARAMETER_COUNTED);
+		int counted = isEmptyOrNull(value) ? 0 : Integer.parseInt(value.trim());
+
+		do {
+			Datastore.DeviceRange range = Datastore.getDeviceRange(cursor, null, null);
+			if (range == null) {
+				cursor = null;
+				break;
+			}
+			counted += range.getSize();
+			cursor = range.getNextCursor();
+		} while (cursor != null && System.currentTimeMillis() < deadline);
+
+		if (cursor != null) {
+			QueueFactory.getDefaultQueue().add(withUrl("/cron/countDevices")
+					.param(PARAMETER_CURSOR, cursor)
+					.param(PARAMETER_COUNTED, String.valueOf(counted))
+					.method(Method.POST));
+			logger.info("Counted " + counted + " devices so far, more queued");
+		} else {
+			long delta = DeviceCounter.reconcile(counted);
+			logger.info("Counted " + counted + " devices, corrected by " + delta);
+		}
+		setSuccess(resp);
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.jsr107cache.Cache;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Sharded counter of the registered devices.
+ * <p>
+ * Registrations update a random shard after their own transaction has
+ * committed, so concurrent updates rarely contend and never fail the
+ * registration; reading the total costs one batch get of {@link #SHARDS}
+ * entities, or a memcache lookup.
+ */
+// 登録されているデバイス数を、複数のエンティティ(シャード)に分けて数えるカウンターです。
+// 1つのエンティティグループへの書き込みは毎秒1回程度に制限されるため、書き込むシャードを毎回ランダムに選びます。
+final class DeviceCounter {
+
+	static final int SHARDS = 20;
+
+	private static final String ENTITY_KIND = "DeviceCounterShard";
+	private static final String COUNT_PROPERTY = "Count";
+	private static final String TOTAL_KEY = "total";
+
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 10 * 60;
+
+	private static final int MAX_ATTEMPTS = 3;
+
+	private static final Logger logger = Logger.getLogger(DeviceCounter.class.getName());
+
+	private static final DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+
+	private static final Cache memcache = CacheUtilities.createCache(ENTITY_KIND,
+			MEMCACHE_EXPIRATION_SECONDS);
+
+	private static final Random random = new Random();
+
+	private DeviceCounter() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Gets the number of registered devices.
+	 */
+	static int get() {
+		Integer total = (Integer) memcache.get(TOTAL_KEY);
+		if (total != null) {
+			return total;
+		}
+		return sum(datastore.get(shardKeys()));
+	}
+
+	// シャードの値を合計し、memcacheに保存します。
+	private static int sum(Map<Key, Entity> shards) {
+		long sum = 0;
+		for (Entity shard : shards.values()) {
+			sum += (Long) shard.getProperty(COUNT_PROPERTY);
+		}
+		int total = (int) Math.max(0, sum);
+		memcache.put(TOTAL_KEY, total);
+		return total;
+	}
+
+	// 指定したトランザクションの中で、ランダムに選んだシャードに加算します。
+	private static void add(Transaction txn, long delta) {
+		Key key = shardKey(random.nextInt(SHARDS));
+		Entity shard;
+		try {
+			shard = datastore.get(txn, key);
+		} catch (EntityNotFoundException e) {
+			shard = new Entity(key);
+			shard.setUnindexedProperty(COUNT_PROPERTY, 0L);
+		}
+		shard.setUnindexedProperty(COUNT_PROPERTY,
+				(Long) shard.getProperty(COUNT_PROPERTY) + delta);
+		datastore.put(txn, shard);
+	}
+
+	/**
+	 * Adds a delta to a random shard in its own transaction, retrying a few
+	 * times on another shard when it contends with a concurrent update. Never
+	 * throws: an update that still fails is logged and left to
+	 * {@link #reconcile(int)}.
+	 */
+	// デバイスの書き込みがコミットされた後に呼び出します。
+	// 競合した場合は別のシャードを選び直して再試行し、それでも失敗した場合や他のエラーの場合は諦めます。
+	// (ずれは定期的な数え直し(reconcile)で補正されるため、例外はスローせず登録処理は失敗させません)
+	static void add(long delta) {
+		if (delta == 0) {
+			return;
+		}
+		try {
+			for (int attempt = 1;; attempt++) {
+				Transaction txn = datastore.beginTransaction();
+				try {
+					add(txn, delta);
+					txn.commit();
+					break;
+				} catch (ConcurrentModificationException e) {
+					if (attempt >= MAX_ATTEMPTS) {
+						logger.warning("Device counter update of " + delta + " dropped after "
+								+ attempt + " attempts");
+						break;
+					}
+				} finally {
+					if (txn.isActive()) {
+						txn.rollback();
+					}
+				}
+			}
+			invalidate();
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Device counter update of " + delta + " dropped", e);
+		}
+	}
+
+	/**
+	 * Corrects the shards so that they add up to a recounted total.
+	 *
+	 * @return the difference that was applied.
+	 */
+	// 定期的に数え直した件数との差をシャードに加えます。数え直している間に増減した分の誤差は次回に補正されます。
+	static long reconcile(int counted) {
+		memcache.remove(TOTAL_KEY);
+		long delta = counted - get();
+		if (delta != 0) {
+			logger.warning("Device counter was off by " + delta);
+			add(delta);
+		}
+		return delta;
+	}
+
+	/**
+	 * Drops the cached total after the shards were updated.
+	 */
+	static void invalidate() {
+		memcache.remove(TOTAL_KEY);
+	}
+
+	private static Key shardKey(int index) {
+		return KeyFactory.createKey(ENTITY_KIND, "shard" + index);
+	}
+
+	private static List<Key> shardKeys() {
+		List<Key> keys = new ArrayList<Key>(SHARDS);
+		for (int i = 0; i < SHARDS; i++) {
+			keys.add(shardKey(i));
+		}
+		return keys;
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.ayaseya.padnotificationgae;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.*;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+
+/**
+ * Servlet that rewrites devices registered with the legacy layout so that
+ * they are keyed by their registration id.
+ * <p>
+ * Invoked by cron; when the time budget of a request runs out, the remaining
+ * devices are handled by a task carrying the query cursor.
+ */
+// 古い形式(数値のID)で登録されたDeviceを、レジストレーションIDをキー名にした形式に移行するサーブレットです。
+// 移行中もregister、unregister等は古い形式のエンティティを削除するため、サービスを止めずに移行できます。
+@SuppressWarnings("serial")
+public class DeviceMigrationServlet extends BaseServlet {
+
+	static final String PARAMETER_CURSOR = "cursor";
+
+	// 1回のバッチで移行するエンティティ数です。
+	private static final int BATCH_SIZE = 200;
+	// 1回のリクエストで移行に使用する時間(ミリ秒)です。超えた場合は続きをタスクとして登録します。
+	private static final long TIME_BUDGET_MILLIS = 20 * 1000;
+
+	// cronからはGETで、続きのタスクからはPOSTで呼び出されます。
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		doPost(req, resp);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		long deadline = System.currentTimeMillis() + TIME_BUDGET_MILLIS;
+		String cursor = req.getParameter(PARAMETER_CURSOR);
+		if (isEmptyOrNull(cursor)) {
+			cursor = null;
+		}
+		int batches = 0;
+		do {
+			cursor = Datastore.migrateDevices(cursor, BATCH_SIZE);
+			batches++;
+		} while (cursor != null && System.currentTimeMillis() < deadline);
+
+		if (cursor != null) {
+			QueueFactory.getDefaultQueue().add(withUrl("/cron/migrateDevices")
+					.param(PARAMETER_CURSOR, cursor).method(Method.POST));
+		}
+		logger.info("Processed " + batches + " batches of legacy devices"
+				+ (cursor != null ? ", more queued" : ""));
+		setSuccess(resp);
+	}
+
+}
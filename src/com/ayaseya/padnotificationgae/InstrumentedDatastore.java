@@ -0,0 +1,319 @@
+package com.ayaseya.padnotificationgae;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Factory of datastore services that record the latency of their RPCs in
+ * {@link Metrics}.
+ * <p>
+ * The following histograms are recorded, each with an {@code .errors}
+ * counter:
+ * <ul>
+ * <li>{@code datastore.<method>}: calls of {@link DatastoreService}, e.g.
+ * {@code get}, {@code put}, {@code delete}, {@code beginTransaction}.</li>
+ * <li>{@code datastore.async.<method>}: calls of
+ * {@link AsyncDatastoreService}, from the call until the returned future
+ * completes. Futures whose result is never requested are not recorded.</li>
+ * <li>{@code datastore.query.<method>}: fetching the results of a prepared
+ * query. {@code prepare} itself makes no RPC and is not recorded. Lists are
+ * fetched completely inside the measured call; iterables and iterators record
+ * the time spent in {@code hasNext}/{@code next} once they are exhausted, so
+ * an iteration stopped early is not recorded.</li>
+ * <li>{@code datastore.commit}, {@code datastore.rollback} and their
+ * {@code Async} variants: transactions started by either service.</li>
+ * </ul>
+ */
+// データストアの呼び出しごとの回数と処理時間を記録するため、DatastoreServiceをプロキシで包みます。
+// DatastoreServiceFactoryの代わりに使用します。
+// クエリは結果を取得する処理、トランザクションはコミットとロールバックを計測します。
+final class InstrumentedDatastore {
+
+	private static final String PREFIX = "datastore.";
+
+	private InstrumentedDatastore() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Returns an instrumented {@link DatastoreService}.
+	 */
+	static DatastoreService getDatastoreService() {
+		return (DatastoreService) proxy(DatastoreService.class, new ServiceHandler(
+				DatastoreServiceFactory.getDatastoreService(), PREFIX));
+	}
+
+	/**
+	 * Returns an instrumented {@link AsyncDatastoreService}.
+	 */
+	static AsyncDatastoreService getAsyncDatastoreService() {
+		return (AsyncDatastoreService) proxy(AsyncDatastoreService.class, new ServiceHandler(
+				DatastoreServiceFactory.getAsyncDatastoreService(), PREFIX + "async."));
+	}
+
+	private static Object proxy(Class<?> type, Handler handler) {
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				handler);
+	}
+
+	// トランザクションはコミットを計測するためにプロキシで包んで返します。
+	private static Object wrapResult(Object result) {
+		if (result instanceof Transaction) {
+			return proxy(Transaction.class, new TransactionHandler(result));
+		}
+		return result;
+	}
+
+	/**
+	 * Base of the handlers; delegates to the wrapped object.
+	 */
+	private abstract static class Handler implements InvocationHandler {
+
+		final Object target;
+
+		Handler(Object target) {
+			this.target = target;
+		}
+
+		@Override
+		public final Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			// データストアの実装はプロキシのトランザクションを受け付けないため、元のオブジェクトに戻して渡します。
+			if (args != null) {
+				for (int i = 0; i < args.length; i++) {
+					if (args[i] != null && Proxy.isProxyClass(args[i].getClass())
+							&& Proxy.getInvocationHandler(args[i]) instanceof Handler) {
+						args[i] = ((Handler) Proxy.getInvocationHandler(args[i])).target;
+					}
+				}
+			}
+			if (method.getDeclaringClass() == Object.class) {
+				return call(method, args);
+			}
+			return handle(method, args);
+		}
+
+		abstract Object handle(Method method, Object[] args) throws Throwable;
+
+		final Object call(Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		final Object timed(String name, Method method, Object[] args) throws Throwable {
+			long start = System.nanoTime();
+			try {
+				return call(method, args);
+			} catch (Throwable e) {
+				Metrics.increment(name + ".errors");
+				throw e;
+			} finally {
+				Metrics.recordSince(name, start);
+			}
+		}
+
+		// Futureを返すメソッドは、Futureの結果を取得した時点までの時間を記録します。
+		final Object timedFuture(String name, Method method, Object[] args) throws Throwable {
+			long start = System.nanoTime();
+			Object future;
+			try {
+				future = call(method, args);
+			} catch (Throwable e) {
+				Metrics.increment(name + ".errors");
+				throw e;
+			}
+			return proxy(Future.class, new FutureHandler(future, name, start));
+		}
+	}
+
+	private static final class ServiceHandler extends Handler {
+
+		private final String prefix;
+
+		ServiceHandler(Object target, String prefix) {
+			super(target);
+			this.prefix = prefix;
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			// prepareはRPCを行わないため計測せず、結果を取得する処理を計測します。
+			if (method.getName().equals("prepare")) {
+				return proxy(PreparedQuery.class, new QueryHandler(call(method, args)));
+			}
+			String name = prefix + method.getName();
+			if (method.getReturnType() == Future.class) {
+				return timedFuture(name, method, args);
+			}
+			return wrapResult(timed(name, method, args));
+		}
+	}
+
+	private static final class TransactionHandler extends Handler {
+
+		TransactionHandler(Object target) {
+			super(target);
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("commit") || name.equals("rollback")) {
+				return timed(PREFIX + name, method, args);
+			}
+			if (name.equals("commitAsync") || name.equals("rollbackAsync")) {
+				return timedFuture(PREFIX + name, method, args);
+			}
+			return call(method, args);
+		}
+	}
+
+	private static final class FutureHandler extends Handler {
+
+		private final String name;
+		private final long start;
+		private boolean recorded;
+
+		FutureHandler(Object target, String name, long start) {
+			super(target);
+			this.name = name;
+			this.start = start;
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			if (!method.getName().equals("get")) {
+				return call(method, args);
+			}
+			try {
+				Object result = call(method, args);
+				record(false);
+				return wrapResult(result);
+			} catch (ExecutionException e) {
+				record(true);
+				throw e;
+			}
+		}
+
+		// 結果を複数回取得しても、記録するのは最初の1回だけです。
+		private synchronized void record(boolean failed) {
+			if (recorded) {
+				return;
+			}
+			recorded = true;
+			if (failed) {
+				Metrics.increment(name + ".errors");
+			}
+			Metrics.recordSince(name, start);
+		}
+	}
+
+	private static final class QueryHandler extends Handler {
+
+		QueryHandler(Object target) {
+			super(target);
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			String name = PREFIX + "query." + method.getName();
+			Class<?> type = method.getReturnType();
+			if (List.class.isAssignableFrom(type)) {
+				// リストは必要になった時点で取得されるため、計測する範囲の中で全件を取得しておきます。
+				long start = System.nanoTime();
+				try {
+					List<?> results = (List<?>) call(method, args);
+					results.size();
+					return results;
+				} catch (Throwable e) {
+					Metrics.increment(name + ".errors");
+					throw e;
+				} finally {
+					Metrics.recordSince(name, start);
+				}
+			}
+			if (Iterable.class.isAssignableFrom(type)) {
+				return proxy(type, new IterableHandler(call(method, args), name));
+			}
+			if (Iterator.class.isAssignableFrom(type)) {
+				return proxy(type, new IteratorHandler(call(method, args), name));
+			}
+			return timed(name, method, args);
+		}
+	}
+
+	private static final class IterableHandler extends Handler {
+
+		private final String name;
+
+		IterableHandler(Object target, String name) {
+			super(target);
+			this.name = name;
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			Object result = call(method, args);
+			if (!method.getName().equals("iterator")) {
+				return result;
+			}
+			Class<?> type = result instanceof QueryResultIterator ? QueryResultIterator.class
+					: Iterator.class;
+			return proxy(type, new IteratorHandler(result, name));
+		}
+	}
+
+	// 結果は次のバッチが必要になった時点で取得されるため、hasNextとnextの時間を合計し、最後まで読んだ時点で記録します。
+	private static final class IteratorHandler extends Handler {
+
+		private final String name;
+		private long nanos;
+		private boolean recorded;
+
+		IteratorHandler(Object target, String name) {
+			super(target);
+			this.name = name;
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			boolean hasNext = method.getName().equals("hasNext");
+			if (!hasNext && !method.getName().equals("next")) {
+				return call(method, args);
+			}
+			long start = System.nanoTime();
+			Object result;
+			try {
+				result = call(method, args);
+			} catch (Throwable e) {
+				Metrics.increment(name + ".errors");
+				throw e;
+			} finally {
+				nanos += System.nanoTime() - start;
+			}
+			if (hasNext && Boolean.FALSE.equals(result) && !recorded) {
+				recorded = true;
+				Metrics.record(name, TimeUnit.NANOSECONDS.toMillis(nanos));
+			}
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Structured logging facade over {@link Logger} for hot paths.
+ * <p>
+ * A record is an event name followed by {@code key=value} fields. Nothing is
+ * formatted or allocated (apart from the caller's boxing) unless the level is
+ * enabled, and the fixed-arity methods avoid varargs arrays. Values of keys
+ * ending in {@code regId} (case insensitive) are replaced by a short hash so
+ * that registration ids never reach the logs, while records of the same
+ * device can still be correlated. A {@link Sampler} limits how many records a
+ * call site writes per interval and reports how many were suppressed.
+ */
+// 送信やデバイスの登録など、頻繁に呼び出される処理で使用するログ出力のクラスです。
+// 出力しないレベルの場合は文字列を組み立てず、レジストレーションIDはハッシュ値の先頭だけを出力します。
+final class Log {
+
+	// レジストレーションIDの代わりに出力するハッシュ値の桁数です。
+	private static final int REG_ID_HASH_LENGTH = 12;
+
+	private final Logger logger;
+
+	private Log(Logger logger) {
+		this.logger = logger;
+	}
+
+	static Log getLog(Class<?> type) {
+		return new Log(Logger.getLogger(type.getName()));
+	}
+
+	/**
+	 * Creates a sampler that lets at most {@code permits} records through per
+	 * {@code intervalMillis}. Keep it in a static field, one per call site.
+	 */
+	static Sampler sampler(int permits, long intervalMillis) {
+		return new Sampler(permits, intervalMillis);
+	}
+
+	boolean isLoggable(Level level) {
+		return logger.isLoggable(level);
+	}
+
+	void log(Level level, String event) {
+		if (logger.isLoggable(level)) {
+			emit(level, null, null, event, null, null, null, null, null, null);
+		}
+	}
+
+	void log(Level level, String event, String key, Object value) {
+		if (logger.isLoggable(level)) {
+			emit(level, null, null, event, key, value, null, null, null, null);
+		}
+	}
+
+	void log(Level level, String event, String key1, Object value1, String key2,
+			Object value2) {
+		if (logger.isLoggable(level)) {
+			emit(level, null, null, event, key1, value1, key2, value2, null, null);
+		}
+	}
+
+	void log(Level level, String event, String key1, Object value1, String key2,
+			Object value2, String key3, Object value3) {
+		if (logger.isLoggable(level)) {
+			emit(level, null, null, event, key1, value1, key2, value2, key3, value3);
+		}
+	}
+
+	void log(Level level, Throwable thrown, String event, String key, Object value) {
+		if (logger.isLoggable(level)) {
+			emit(level, thrown, null, event, key, value, null, null, null, null);
+		}
+	}
+
+	/**
+	 * Logs a record if the sampler of the call site allows it.
+	 */
+	void log(Sampler sampler, Level level, String event, String key1,
+			Object value1, String key2, Object value2) {
+		if (logger.isLoggable(level) && sampler.acquire()) {
+			emit(level, null, sampler, event, key1, value1, key2, value2, null, null);
+		}
+	}
+
+	/**
+	 * Returns a short, stable hash of a registration id for logging.
+	 */
+	static String hashRegId(String regId) {
+		if (regId == null) {
+			return null;
+		}
+		return PageFingerprint.hash(regId).substring(0, REG_ID_HASH_LENGTH);
+	}
+
+	private void emit(Level level, Throwable thrown, Sampler sampler,
+			String event, String key1, Object value1, String key2, Object value2,
+			String key3, Object value3) {
+		StringBuilder message = new StringBuilder(64).append(event);
+		append(message, key1, value1);
+		append(message, key2, value2);
+		append(message, key3, value3);
+		if (sampler != null) {
+			long suppressed = sampler.drainSuppressed();
+			if (suppressed > 0) {
+				message.append(" suppressed=").append(suppressed);
+				Metrics.add("log.suppressed", suppressed);
+			}
+		}
+		Metrics.increment("log." + level.getName());
+		// 呼び出し元をスタックトレースから推測しないよう、ロガー名を出力元として指定します。
+		logger.logp(level, logger.getName(), null, message.toString(), thrown);
+	}
+
+	private static void append(StringBuilder message, String key, Object value) {
+		if (key == null) {
+			return;
+		}
+		message.append(' ').append(key).append('=');
+		if (value instanceof String && isRegIdKey(key)) {
+			message.append(hashRegId((String) value));
+		} else {
+			message.append(value);
+		}
+	}
+
+	private static boolean isRegIdKey(String key) {
+		return key.regionMatches(true, key.length() - 5, "regId", 0, 5);
+	}
+
+	/**
+	 * Rate limit of one call site.
+	 */
+	// 一定時間(intervalMillis)あたりに出力する件数をpermits件までに制限します。超えた件数は次に出力する際に付け加えます。
+	static final class Sampler {
+
+		private final int permits;
+		private final long intervalMillis;
+		private final AtomicLong windowStart = new AtomicLong();
+		private final AtomicInteger used = new AtomicInteger();
+		private final AtomicLong suppressed = new AtomicLong();
+
+		private Sampler(int permits, long intervalMillis) {
+			this.permits = permits;
+			this.intervalMillis = intervalMillis;
+		}
+
+		boolean acquire() {
+			long now = System.currentTimeMillis();
+			long start = windowStart.get();
+			if (now - start >= intervalMillis && windowStart.compareAndSet(start, now)) {
+				used.set(0);
+			}
+			if (used.incrementAndGet() <= permits) {
+				return true;
+			}
+			suppressed.incrementAndGet();
+			return false;
+		}
+
+		long drainSuppressed() {
+			return suppressed.getAndSet(0);
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory counters and histograms of the current instance.
+ * <p>
+ * Values are recorded into striped {@link AtomicLongArray}s: each thread
+ * updates the stripe chosen by its id, so concurrent requests rarely contend
+ * on the same cache line and recording never takes a lock. Stripes are only
+ * summed when a snapshot is taken.
+ * <p>
+ * Metrics are per instance and are lost when the instance shuts down.
+ */
+// 処理時間や回数をインスタンスのメモリ上に記録するクラスです。
+// スレッドごとに異なる領域(ストライプ)に加算し、ロックを使わずに記録します。
+final class Metrics {
+
+	// ヒストグラムの各バケットの上限値です。最後のバケットはこれを超える値を数えます。
+	private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200,
+			500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+	// ストライプの数です。(2のべき乗)
+	private static final int STRIPES = 8;
+	// 隣のストライプと同じキャッシュライン(64バイト)を共有しないように、long 8個分の単位で配置します。
+	private static final int PADDING = 8;
+
+	private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	private Metrics() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Adds 1 to a counter.
+	 */
+	static void increment(String name) {
+		add(name, 1);
+	}
+
+	/**
+	 * Adds a value to a counter.
+	 */
+	static void add(String name, long delta) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter();
+			Counter existing = counters.putIfAbsent(name, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		counter.add(delta);
+	}
+
+	/**
+	 * Records a value, e.g. a size in bytes, in a histogram.
+	 */
+	static void record(String name, long value) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = histograms.putIfAbsent(name, histogram);
+			if (existing != null) {
+				histogram = existing;
+			}
+		}
+		histogram.record(value);
+	}
+
+	/**
+	 * Records the milliseconds elapsed since {@code startNanos}, a value
+	 * returned by {@link System#nanoTime()}.
+	 */
+	static void recordSince(String name, long startNanos) {
+		record(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Returns the current values of every counter and histogram, sorted by
+	 * name.
+	 */
+	static Map<String, Object> snapshot() {
+		Map<String, Object> counterValues = new TreeMap<String, Object>();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			counterValues.put(entry.getKey(), entry.getValue().sum());
+		}
+		Map<String, Object> histogramValues = new TreeMap<String, Object>();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+		snapshot.put("counters", counterValues);
+		snapshot.put("histograms", histogramValues);
+		return snapshot;
+	}
+
+	// 現在のスレッドが使用するストライプの番号を返します。
+	private static int stripe() {
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+
+	/**
+	 * Counter split into {@link Metrics#STRIPES} cells.
+	 */
+	private static final class Counter {
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		void add(long delta) {
+			cells.addAndGet(stripe() * PADDING, delta);
+		}
+
+		long sum() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += cells.get(i * PADDING);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Histogram with fixed buckets, split into {@link Metrics#STRIPES} rows.
+	 * Each row holds the bucket counts, the sum and the maximum.
+	 */
+	private static final class Histogram {
+
+		private static final int BUCKETS = BUCKET_BOUNDS.length + 1;
+		private static final int SUM = BUCKETS;
+		private static final int MAX = BUCKETS + 1;
+		// 1ストライプあたりの要素数を、PADDINGの倍数に切り上げます。
+		private static final int STRIDE = (MAX + PADDING) / PADDING * PADDING;
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+		void record(long value) {
+			int base = stripe() * STRIDE;
+			cells.incrementAndGet(base + bucket(value));
+			cells.addAndGet(base + SUM, value);
+			long max;
+			while (value > (max = cells.get(base + MAX))) {
+				if (cells.compareAndSet(base + MAX, max, value)) {
+					break;
+				}
+			}
+		}
+
+		Map<String, Object> snapshot() {
+			long[] buckets = new long[BUCKETS];
+			long count = 0;
+			long sum = 0;
+			long max = 0;
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				int base = stripe * STRIDE;
+				for (int i = 0; i < BUCKETS; i++) {
+					long n = cells.get(base + i);
+					buckets[i] += n;
+					count += n;
+				}
+				sum += cells.get(base + SUM);
+				max = Math.max(max, cells.get(base + MAX));
+			}
+			Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+			snapshot.put("count", count);
+			snapshot.put("sum", sum);
+			snapshot.put("mean", count > 0 ? sum / count : 0);
+			snapshot.put("p50", percentile(buckets, count, 0.50, max));
+			snapshot.put("p90", percentile(buckets, count, 0.90, max));
+			snapshot.put("p99", percentile(buckets, count, 0.99, max));
+			snapshot.put("max", max);
+			return snapshot;
+		}
+
+		private static int bucket(long value) {
+			for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+				if (value <= BUCKET_BOUNDS[i]) {
+					return i;
+				}
+			}
+			return BUCKET_BOUNDS.length;
+		}
+
+		// パーセンタイルを、その値が含まれるバケットの上限値で近似します。
+		private static long percentile(long[] buckets, long count, double quantile,
+				long max) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(count * quantile);
+			long seen = 0;
+			for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return Math.min(BUCKET_BOUNDS[i], max);
+				}
+			}
+			return max;
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Filter that records the latency, request size and task retries of every
+ * endpoint in {@link Metrics}.
+ */
+// 全てのリクエストの処理時間、本文のサイズ、タスクのリトライ回数をエンドポイントごとに記録するフィルターです。
+// BaseServletを継承していないScheduleJsoupTaskも対象になります。
+public class MetricsFilter implements Filter {
+
+	private static final String HEADER_QUEUE_COUNT = "X-AppEngine-TaskRetryCount";
+
+	@Override
+	public void init(FilterConfig config) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse resp,
+			FilterChain chain) throws IOException, ServletException {
+		String path = ((HttpServletRequest) req).getServletPath();
+		int length = req.getContentLength();
+		if (length > 0) {
+			Metrics.record("http.requestBytes:" + path, length);
+		}
+		String retries = ((HttpServletRequest) req).getHeader(HEADER_QUEUE_COUNT);
+		if (retries != null) {
+			try {
+				Metrics.record("task.retryCount:" + path, Long.parseLong(retries));
+			} catch (NumberFormatException e) {
+				// 記録しません。
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			chain.doFilter(req, resp);
+		} catch (IOException e) {
+			Metrics.increment("http.errors:" + path);
+			throw e;
+		} catch (ServletException e) {
+			Metrics.increment("http.errors:" + path);
+			throw e;
+		} catch (RuntimeException e) {
+			Metrics.increment("http.errors:" + path);
+			throw e;
+		} finally {
+			Metrics.recordSince("http:" + path, start);
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+}
@@ -0,0 +1,35 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Servlet that returns the {@link Metrics} of the instance serving the
+ * request as JSON.
+ * <p>
+ * Mapped to {@code /admin/metrics}, which requires an administrator.
+ */
+// このインスタンスで記録した処理時間や回数をJSONで返すサーブレットです。
+@SuppressWarnings("serial")
+public class MetricsServlet extends BaseServlet {
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		byte[] body = JSONValue.toJSONString(Metrics.snapshot()).getBytes("UTF-8");
+		setSuccess(resp, body.length);
+		resp.setContentType("application/json; charset=UTF-8");
+		resp.getOutputStream().write(body);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		doGet(req, resp);
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.ayaseya.padnotificationgae;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.*;
+
+import java.io.IOException;
+import java.util.Date;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+
+/**
+ * Servlet that deletes the multicast records left behind by dropped
+ * {@code /send} tasks.
+ * <p>
+ * Invoked by cron; when the time budget of a request runs out, the sweep
+ * continues in a task carrying the cutoff, the query cursor and the partial
+ * count. Records stored before their creation time was recorded first get one
+ * through {@link Datastore#backfillMulticasts(String, int)}, a one-off pass
+ * that continues in a task of its own.
+ */
+// 送信のタスクが破棄されたために削除されず残ったMulticastエンティティを削除するサーブレットです。
+@SuppressWarnings("serial")
+public class MulticastSweepServlet extends BaseServlet {
+
+	static final String PARAMETER_CUTOFF = "cutoff";
+	static final String PARAMETER_CURSOR = "cursor";
+	static final String PARAMETER_SWEPT = "swept";
+	static final String PARAMETER_BACKFILL_CURSOR = "backfillCursor";
+
+	// 作成から1日以上経過したMulticastエンティティを削除します。
+	// リトライの間隔(最大10分)と回数に比べて十分長くし、送信中のエンティティを削除しないようにします。
+	private static final long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+	// 1回のバッチで削除するエンティティ数です。(1回の削除RPCの上限は500件です)
+	private static final int BATCH_SIZE = 500;
+	// 作成日時を補完するために1回のバッチで読み込むエンティティ数です。(送信先を含むエンティティ全体を読み込みます)
+	private static final int BACKFILL_BATCH_SIZE = 100;
+	// 1回のリクエストで削除に使用する時間(ミリ秒)です。超えた場合は続きをタスクとして登録します。
+	private static final long TIME_BUDGET_MILLIS = 20 * 1000;
+
+	// cronからはGETで、続きのタスクからはPOSTで呼び出されます。
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		doPost(req, resp);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		long deadline = System.currentTimeMillis() + TIME_BUDGET_MILLIS;
+		if (!backfill(req, deadline)) {
+			setSuccess(resp);
+			return;
+		}
+		// 続きのタスクでは最初のリクエストと同じ基準日時を使用します。
+		String value = req.getParameter(PARAMETER_CUTOFF);
+		long cutoff = isEmptyOrNull(value) ? System.currentTimeMillis()
+				- MAX_AGE_MILLIS : Long.parseLong(value.trim());
+		String cursor = req.getParameter(PARAMETER_CURSOR);
+		if (isEmptyOrNull(cursor)) {
+			cursor = null;
+		}
+		value = req.getParameter(PARAMETER_SWEPT);
+		int swept = isEmptyOrNull(value) ? 0 : Integer.parseInt(value.trim());
+
+		do {
+			Datastore.MulticastSweep sweep = Datastore.sweepMulticasts(
+					new Date(cutoff), cursor, BATCH_SIZE);
+			swept += sweep.getDeleted();
+			cursor = sweep.getNextCursor();
+		} while (cursor != null && System.currentTimeMillis() < deadline);
+
+		if (cursor != null) {
+			QueueFactory.getDefaultQueue().add(withUrl("/cron/sweepMulticasts")
+					.param(PARAMETER_CUTOFF, String.valueOf(cutoff))
+					.param(PARAMETER_CURSOR, cursor)
+					.param(PARAMETER_SWEPT, String.valueOf(swept))
+					.method(Method.POST));
+			logger.info("Swept " + swept + " stale multicasts so far, more queued");
+		} else {
+			logger.info("Swept " + swept + " stale multicasts created before "
+					+ new Date(cutoff));
+		}
+		setSuccess(resp);
+	}
+
+	// 作成日時を保存していない古い形式のエンティティに作成日時を補完します。(完了後は何もしません)
+	// 時間内に終わらない場合は続きをタスクとして登録し、falseを返します。削除はその後のリクエストで行います。
+	private boolean backfill(HttpServletRequest req, long deadline) {
+		String cursor = req.getParameter(PARAMETER_BACKFILL_CURSOR);
+		if (isEmptyOrNull(cursor)) {
+			cursor = null;
+		}
+		do {
+			cursor = Datastore.backfillMulticasts(cursor, BACKFILL_BATCH_SIZE);
+		} while (cursor != null && System.currentTimeMillis() < deadline);
+
+		if (cursor == null) {
+			return true;
+		}
+		QueueFactory.getDefaultQueue().add(withUrl("/cron/sweepMulticasts")
+				.param(PARAMETER_BACKFILL_CURSOR, cursor).method(Method.POST));
+		logger.info("Backfilling the creation time of legacy multicasts, more queued");
+		return false;
+	}
+
+}
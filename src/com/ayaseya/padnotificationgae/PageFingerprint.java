@@ -0,0 +1,140 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.sf.jsr107cache.Cache;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * HTTP validators and content hashes of the last scraped index page.
+ * <p>
+ * Used to send conditional requests and to stop a scrape as soon as the page
+ * turns out to be unchanged.
+ */
+// 前回取得したページのETag、Last-Modified、HTML全体と告知部分のハッシュ値を保持します。
+@SuppressWarnings("serial")
+final class PageFingerprint implements Serializable {
+
+	private static final String ENTITY_KIND = "Jsoup";
+	private static final String ENTITY_KEY = "Fingerprint";
+	private static final String ETAG_PROPERTY = "ETag";
+	private static final String LAST_MODIFIED_PROPERTY = "LastModified";
+	private static final String BODY_HASH_PROPERTY = "BodyHash";
+	private static final String FRAGMENT_HASH_PROPERTY = "FragmentHash";
+
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 60 * 60;
+
+	// 一度も保存されていない場合の値です。
+	static final PageFingerprint EMPTY = new PageFingerprint(null, null, null, null);
+
+	private static final DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+
+	private static final Cache memcache = CacheUtilities.createCache(ENTITY_KIND,
+			MEMCACHE_EXPIRATION_SECONDS);
+
+	final String etag;
+	final String lastModified;
+	final String bodyHash;
+	final String fragmentHash;
+
+	PageFingerprint(String etag, String lastModified, String bodyHash,
+			String fragmentHash) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.bodyHash = bodyHash;
+		this.fragmentHash = fragmentHash;
+	}
+
+	/**
+	 * Loads the fingerprint of the previous scrape, from memcache if possible.
+	 */
+	static PageFingerprint load() {
+		PageFingerprint fingerprint = (PageFingerprint) memcache.get(ENTITY_KEY);
+		if (fingerprint != null) {
+			return fingerprint;
+		}
+		Key key = KeyFactory.createKey(ENTITY_KIND, ENTITY_KEY);
+		try {
+			Entity entity = datastore.get(key);
+			fingerprint = new PageFingerprint(
+					(String) entity.getProperty(ETAG_PROPERTY),
+					(String) entity.getProperty(LAST_MODIFIED_PROPERTY),
+					(String) entity.getProperty(BODY_HASH_PROPERTY),
+					(String) entity.getProperty(FRAGMENT_HASH_PROPERTY));
+		} catch (EntityNotFoundException e) {
+			fingerprint = EMPTY;
+		}
+		memcache.put(ENTITY_KEY, fingerprint);
+		return fingerprint;
+	}
+
+	/**
+	 * Stores this fingerprint for the next scrape.
+	 */
+	void save() {
+		Entity entity = new Entity(KeyFactory.createKey(ENTITY_KIND, ENTITY_KEY));
+		entity.setUnindexedProperty(ETAG_PROPERTY, etag);
+		entity.setUnindexedProperty(LAST_MODIFIED_PROPERTY, lastModified);
+		entity.setUnindexedProperty(BODY_HASH_PROPERTY, bodyHash);
+		entity.setUnindexedProperty(FRAGMENT_HASH_PROPERTY, fragmentHash);
+		datastore.put(entity);
+		memcache.put(ENTITY_KEY, this);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PageFingerprint)) {
+			return false;
+		}
+		PageFingerprint other = (PageFingerprint) obj;
+		return equal(etag, other.etag)
+				&& equal(lastModified, other.lastModified)
+				&& equal(bodyHash, other.bodyHash)
+				&& equal(fragmentHash, other.fragmentHash);
+	}
+
+	@Override
+	public int hashCode() {
+		return bodyHash != null ? bodyHash.hashCode() : 0;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Returns the SHA-1 hash of the given bytes as a hex string.
+	 */
+	static String hash(byte[] bytes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] hashed = digest.digest(bytes);
+		StringBuilder hex = new StringBuilder(hashed.length * 2);
+		for (byte b : hashed) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	static String hash(String text) {
+		try {
+			return hash(text.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
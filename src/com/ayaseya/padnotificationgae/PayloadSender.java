@@ -0,0 +1,327 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.InvalidRequestException;
+import com.google.android.gcm.server.MulticastResult;
+import com.google.android.gcm.server.Result;
+import com.google.android.gcm.server.Sender;
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+
+/**
+ * {@link Sender} that posts the pre-encoded bytes of a
+ * {@link BroadcastPayload} instead of serializing the message again for every
+ * multicast.
+ * <p>
+ * Several multicasts can be kept in flight at once with
+ * {@link #sendNoRetry(BroadcastPayload, List, int)}; the requests go through
+ * the asynchronous URL Fetch service, which reuses its connections to the
+ * GCM endpoint.
+ */
+// BroadcastPayloadのエンコード済みのバイト列に、レジストレーションIDの部分だけを付け足して送信します。
+class PayloadSender extends Sender {
+
+	private static final String UTF8 = "UTF-8";
+
+	// 非同期で送信する場合の1リクエストあたりのタイムアウト(秒)です。
+	private static final double FETCH_DEADLINE_SECONDS = 60;
+
+	private final String key;
+	private final URL endpointUrl;
+	private final URLFetchService urlFetch = URLFetchServiceFactory.getURLFetchService();
+
+	PayloadSender(String key) {
+		this(key, Constants.GCM_SEND_ENDPOINT);
+	}
+
+	/**
+	 * @param key
+	 *            API key.
+	 * @param endpoint
+	 *            URL multicasts are posted to, e.g. a local stand-in of the GCM
+	 *            server.
+	 */
+	PayloadSender(String key, String endpoint) {
+		super(key);
+		this.key = key;
+		try {
+			this.endpointUrl = new URL(endpoint);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid endpoint " + endpoint, e);
+		}
+	}
+
+	/**
+	 * Sends a payload to several groups of devices, keeping at most
+	 * {@code maxConcurrent} requests in flight.
+	 *
+	 * @param chunks
+	 *            registration ids of each multicast, at most
+	 *            {@link Datastore#MULTICAST_SIZE} per chunk.
+	 * @param maxConcurrent
+	 *            maximum number of requests in flight.
+	 * @return the response to each chunk, in the same order.
+	 */
+	// 送信中のリクエストがmaxConcurrent件になるまで次のリクエストを開始し、
+	// 上限に達した場合は最も古いリクエストの完了を待ってから次を開始します。
+	List<MulticastResponse> sendNoRetry(BroadcastPayload payload,
+			List<List<String>> chunks, int maxConcurrent) throws IOException {
+		List<MulticastResponse> responses = new ArrayList<MulticastResponse>(
+				Collections.<MulticastResponse> nCopies(chunks.size(), null));
+		List<Future<HTTPResponse>> futures = new ArrayList<Future<HTTPResponse>>(
+				chunks.size());
+		// 各リクエストの開始時刻です。完了を待った時点までをGCMの処理時間として記録します。
+		long[] starts = new long[chunks.size()];
+		for (int i = 0; i < chunks.size(); i++) {
+			if (i >= maxConcurrent) {
+				int done = i - maxConcurrent;
+				responses.set(done, await(futures.get(done), starts[done]));
+			}
+			starts[i] = System.nanoTime();
+			futures.add(sendNoRetryAsync(payload, chunks.get(i)));
+		}
+		for (int i = Math.max(0, chunks.size() - maxConcurrent); i < chunks.size(); i++) {
+			responses.set(i, await(futures.get(i), starts[i]));
+		}
+		return responses;
+	}
+
+	/**
+	 * Starts sending a payload to many devices without waiting for the
+	 * response.
+	 *
+	 * @see #toMulticastResponse(HTTPResponse)
+	 */
+	Future<HTTPResponse> sendNoRetryAsync(BroadcastPayload payload,
+			List<String> regIds) throws IOException {
+		if (regIds.isEmpty()) {
+			throw new IllegalArgumentException("registrationIds cannot be empty");
+		}
+		HTTPRequest request = new HTTPRequest(endpointUrl, HTTPMethod.POST,
+				FetchOptions.Builder.withDeadline(FETCH_DEADLINE_SECONDS)
+						.disallowTruncate());
+		request.setHeader(new HTTPHeader("Content-Type", "application/json"));
+		request.setHeader(new HTTPHeader("Authorization", "key=" + key));
+		byte[] body = encodeBody(payload, regIds);
+		Metrics.record("gcm.requestBytes", body.length);
+		request.setPayload(body);
+		return urlFetch.fetchAsync(request);
+	}
+
+	/**
+	 * Interprets the response of a request started by
+	 * {@link #sendNoRetryAsync(BroadcastPayload, List)}.
+	 */
+	// ステータスが200以外の場合、5xxはリクエスト全体をリトライ可能、それ以外はリトライ不可として扱います。
+	static MulticastResponse toMulticastResponse(HTTPResponse response) {
+		byte[] content = response.getContent();
+		String body = null;
+		try {
+			body = content != null ? new String(content, UTF8) : null;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		long retryAfterMillis = getRetryAfterMillis(response);
+		int status = response.getResponseCode();
+		if (status != 200) {
+			logger.log(Level.SEVERE, "Exception posting multicast",
+					new InvalidRequestException(status, body));
+			return new MulticastResponse(null, status >= 500, retryAfterMillis);
+		}
+		try {
+			return new MulticastResponse(parseMulticastResult(body), false,
+					retryAfterMillis);
+		} catch (IOException e) {
+			// 送信済みの可能性があるため、重複して通知しないようにリトライしません。
+			logger.log(Level.SEVERE, "Exception parsing multicast response", e);
+			return new MulticastResponse(null, false, retryAfterMillis);
+		}
+	}
+
+	// リクエストの完了を待って結果を返します。通信に失敗した場合はリトライ可能として扱います。
+	private static MulticastResponse await(Future<HTTPResponse> future,
+			long startNanos) {
+		try {
+			HTTPResponse response = future.get();
+			Metrics.recordSince("gcm.multicast", startNanos);
+			Metrics.increment("gcm.status." + response.getResponseCode());
+			return toMulticastResponse(response);
+		} catch (ExecutionException e) {
+			Metrics.increment("gcm.errors");
+			logger.log(Level.SEVERE, "Exception posting multicast", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.log(Level.SEVERE, "Interrupted posting multicast", e);
+		}
+		return new MulticastResponse(null, true, 0);
+	}
+
+	// Retry-Afterヘッダーの値(秒数またはHTTP日付)をミリ秒に変換します。ない場合は0を返します。
+	private static long getRetryAfterMillis(HTTPResponse response) {
+		List<HTTPHeader> headers = response.getHeaders();
+		if (headers == null) {
+			return 0;
+		}
+		for (HTTPHeader header : headers) {
+			if (!"Retry-After".equalsIgnoreCase(header.getName())) {
+				continue;
+			}
+			String value = header.getValue().trim();
+			try {
+				return Math.max(0, Long.parseLong(value) * 1000);
+			} catch (NumberFormatException e) {
+				// 日付で指定された場合の処理です。
+			}
+			SimpleDateFormat format = new SimpleDateFormat(
+					"EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			try {
+				return Math.max(0, format.parse(value).getTime()
+						- System.currentTimeMillis());
+			} catch (java.text.ParseException e) {
+				logger.warning("Invalid Retry-After header: " + value);
+			}
+		}
+		return 0;
+	}
+
+	// 「{"registration_ids":[...],」にエンコード済みのフィールドと「}」を続けたリクエストの本文を作成します。
+	private static byte[] encodeBody(BroadcastPayload payload, List<String> regIds)
+			throws IOException {
+		byte[] fields = payload.getEncodedFields();
+		byte[] head = encodeHead(regIds, fields.length > 0);
+		byte[] body = new byte[head.length + fields.length + 1];
+		System.arraycopy(head, 0, body, 0, head.length);
+		System.arraycopy(fields, 0, body, head.length, fields.length);
+		body[body.length - 1] = '}';
+		return body;
+	}
+
+	// 「{"registration_ids":[...],」の部分をエンコードします。
+	// メッセージにフィールドがない場合は最後のカンマを付けません。
+	private static byte[] encodeHead(List<String> regIds, boolean hasFields)
+			throws IOException {
+		StringBuilder head = new StringBuilder();
+		head.append("{\"").append(Constants.JSON_REGISTRATION_IDS).append("\":")
+				.append(JSONValue.toJSONString(regIds));
+		if (hasFields) {
+			head.append(',');
+		}
+		return head.toString().getBytes(UTF8);
+	}
+
+	/**
+	 * Parses the JSON response of a multicast request.
+	 */
+	static MulticastResult parseMulticastResult(String body) throws IOException {
+		Map<?, ?> response;
+		try {
+			response = (Map<?, ?>) new JSONParser().parse(body);
+		} catch (ParseException e) {
+			throw new IOException("Error parsing JSON response (" + body + ")", e);
+		} catch (ClassCastException e) {
+			throw new IOException("Error parsing JSON response (" + body + ")", e);
+		}
+		MulticastResult.Builder builder = new MulticastResult.Builder(
+				getInt(response, Constants.JSON_SUCCESS),
+				getInt(response, Constants.JSON_FAILURE),
+				getInt(response, Constants.JSON_CANONICAL_IDS),
+				getNumber(response, Constants.JSON_MULTICAST_ID).longValue());
+		List<?> results = (List<?>) response.get(Constants.JSON_RESULTS);
+		if (results != null) {
+			for (Object item : results) {
+				Map<?, ?> json = (Map<?, ?>) item;
+				builder.addResult(new Result.Builder()
+						.messageId((String) json.get(Constants.JSON_MESSAGE_ID))
+						.canonicalRegistrationId(
+								(String) json.get(Constants.TOKEN_CANONICAL_REG_ID))
+						.errorCode((String) json.get(Constants.JSON_ERROR))
+						.build());
+			}
+		}
+		return builder.build();
+	}
+
+	private static int getInt(Map<?, ?> json, String field) throws IOException {
+		return getNumber(json, field).intValue();
+	}
+
+	private static Number getNumber(Map<?, ?> json, String field)
+			throws IOException {
+		Object value = json.get(field);
+		if (!(value instanceof Number)) {
+			throw new IOException("Missing field " + field + " in response " + json);
+		}
+		return (Number) value;
+	}
+
+	/**
+	 * Outcome of one multicast request.
+	 */
+	static final class MulticastResponse {
+
+		private final MulticastResult result;
+		private final boolean retriable;
+		private final long retryAfterMillis;
+		private final long receivedMillis;
+
+		MulticastResponse(MulticastResult result, boolean retriable,
+				long retryAfterMillis) {
+			this.result = result;
+			this.retriable = retriable;
+			this.retryAfterMillis = retryAfterMillis;
+			this.receivedMillis = System.currentTimeMillis();
+		}
+
+		/**
+		 * Result of each recipient, or {@code null} if the request failed.
+		 */
+		MulticastResult getResult() {
+			return result;
+		}
+
+		/**
+		 * Whether a failed request may be sent again to all its recipients.
+		 */
+		boolean isRetriable() {
+			return retriable;
+		}
+
+		/**
+		 * Delay requested by the {@code Retry-After} header, or 0.
+		 */
+		long getRetryAfterMillis() {
+			return retryAfterMillis;
+		}
+
+		/**
+		 * Time the response was read, in milliseconds.
+		 */
+		long getReceivedMillis() {
+			return receivedMillis;
+		}
+	}
+
+}
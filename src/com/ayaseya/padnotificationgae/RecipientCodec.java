@@ -0,0 +1,164 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary encoding of a recipient list and its attempt counts.
+ * <p>
+ * Registration ids are sorted and front coded (each id stores the length of
+ * the prefix it shares with the previous one and the remaining bytes), then
+ * the whole record is deflated. Registration ids issued by GCM share long
+ * prefixes, so a list of 1000 ids shrinks to a fraction of its plain size
+ * and is stored as a single unindexed blob.
+ */
+// Multicastエンティティに保存する送信先のリストを、1つのバイト列にエンコードするクラスです。
+// リスト型のプロパティは要素ごとにインデックスが作成されるため、インデックスを作成しないBlobとして保存します。
+final class RecipientCodec {
+
+	// エンコード形式を変更した場合は値を増やし、読み込み時に判別します。
+	private static final int FORMAT_VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private RecipientCodec() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Encodes registration ids and the attempts made for each of them. The
+	 * order of the recipients is not preserved.
+	 */
+	static byte[] encode(List<String> regIds, List<Integer> attempts) {
+		final byte[][] ids = new byte[regIds.size()][];
+		Integer[] order = new Integer[regIds.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = regIds.get(i).getBytes(UTF8);
+			order[i] = i;
+		}
+		// 並べ替えて、前のIDと共通する先頭部分を長くします。
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return compareBytes(ids[a], ids[b]);
+			}
+		});
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(ids.length * 32 + 16);
+		bytes.write(FORMAT_VERSION);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+			writeVarint(out, ids.length);
+			byte[] previous = new byte[0];
+			for (int i : order) {
+				byte[] id = ids[i];
+				int prefix = commonPrefix(previous, id);
+				writeVarint(out, prefix);
+				writeVarint(out, id.length - prefix);
+				out.write(id, prefix, id.length - prefix);
+				writeVarint(out, attempts.get(i));
+				previous = id;
+			}
+			out.finish();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);// ByteArrayOutputStreamへの書き込みでは発生しません。
+		} finally {
+			deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a list encoded by {@link #encode(List, List)}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the bytes are not a valid encoding.
+	 */
+	static Datastore.PendingMulticast decode(byte[] encoded) {
+		if (encoded.length == 0 || encoded[0] != FORMAT_VERSION) {
+			throw new IllegalArgumentException("Unsupported recipient encoding");
+		}
+		Inflater inflater = new Inflater();
+		try {
+			DataInputStream in = new DataInputStream(new InflaterInputStream(
+					new ByteArrayInputStream(encoded, 1, encoded.length - 1), inflater));
+			int size = readVarint(in);
+			List<String> regIds = new ArrayList<String>(size);
+			List<Integer> attempts = new ArrayList<Integer>(size);
+			byte[] previous = new byte[0];
+			for (int i = 0; i < size; i++) {
+				int prefix = readVarint(in);
+				int suffix = readVarint(in);
+				byte[] id = Arrays.copyOf(previous, prefix + suffix);
+				in.readFully(id, prefix, suffix);
+				regIds.add(new String(id, UTF8));
+				attempts.add(readVarint(in));
+				previous = id;
+			}
+			return new Datastore.PendingMulticast(regIds, attempts);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Corrupted recipient encoding", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static int commonPrefix(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < length && a[i] == b[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int compareBytes(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	// 0以上の整数を、7ビットずつ可変長で書き込みます。
+	private static void writeVarint(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("Unexpected end of recipient encoding");
+			}
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+}
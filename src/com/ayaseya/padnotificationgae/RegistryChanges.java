@@ -0,0 +1,103 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+
+/**
+ * Registry changes reported by GCM while sending, applied later by
+ * {@link RegistryServlet}.
+ * <p>
+ * Canonical ids and {@code NotRegistered} results are collected while a task
+ * sends its multicasts and handed off to the {@code registry} queue, so the
+ * time spent sending does not depend on how many registrations are stale.
+ */
+// 送信結果から判明したレジストレーションIDの更新と登録解除をまとめて、registryキューのタスクとして登録します。
+final class RegistryChanges {
+
+	static final String PARAMETER_OLD_ID = "oldId";
+	static final String PARAMETER_NEW_ID = "newId";
+	static final String PARAMETER_UNREGISTER = "unregister";
+
+	// 1つのタスクに含める変更の上限です。タスクのサイズの上限(100KB)に収まるようにしています。
+	private static final int CHANGES_PER_TASK = 100;
+
+	private static final Logger logger = Logger.getLogger(RegistryChanges.class.getName());
+
+	private final Map<String, String> canonicalIds = new LinkedHashMap<String, String>();
+	private final Set<String> unregistered = new LinkedHashSet<String>();
+
+	/**
+	 * Records that a device has a new registration id.
+	 */
+	void update(String oldId, String newId) {
+		canonicalIds.put(oldId, newId);
+	}
+
+	/**
+	 * Records that a device is no longer registered.
+	 */
+	void unregister(String regId) {
+		unregistered.add(regId);
+	}
+
+	/**
+	 * Adds the recorded changes to the {@code registry} queue. If the tasks
+	 * cannot be added, the changes are applied immediately instead.
+	 *
+	 * @return number of changes recorded.
+	 */
+	int flush() {
+		int size = canonicalIds.size() + unregistered.size();
+		if (size == 0) {
+			return 0;
+		}
+		List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+		TaskOptions task = null;
+		int count = 0;
+		for (Map.Entry<String, String> entry : canonicalIds.entrySet()) {
+			if (count++ % CHANGES_PER_TASK == 0) {
+				task = newTask();
+				tasks.add(task);
+			}
+			task.param(PARAMETER_OLD_ID, entry.getKey()).param(PARAMETER_NEW_ID,
+					entry.getValue());
+		}
+		for (String regId : unregistered) {
+			if (count++ % CHANGES_PER_TASK == 0) {
+				task = newTask();
+				tasks.add(task);
+			}
+			task.param(PARAMETER_UNREGISTER, regId);
+		}
+
+		try {
+			TaskBatcher batcher = new TaskBatcher(QueueFactory.getQueue("registry"));
+			for (TaskOptions options : tasks) {
+				batcher.add(options);
+			}
+			batcher.flush();
+		} catch (RuntimeException e) {
+			// タスクを登録できなかった場合は、変更が失われないようにこの場で反映します。
+			logger.log(Level.WARNING, "Could not queue registry changes, applying now", e);
+			Datastore.applyRegistryChanges(canonicalIds, unregistered);
+		}
+		canonicalIds.clear();
+		unregistered.clear();
+		return size;
+	}
+
+	private static TaskOptions newTask() {
+		return TaskOptions.Builder.withUrl("/registry").method(Method.POST);
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that applies the registry changes collected by
+ * {@link RegistryChanges}.
+ * <p>
+ * This servlet is invoked by AppEngine's Push Queue mechanism.
+ */
+// registryキューから呼び出され、レジストレーションIDの更新と登録解除をまとめてデータストアに反映します。
+// 同じ変更を何度反映しても結果は変わらないため、失敗した場合はタスクキューのリトライに任せます。
+@SuppressWarnings("serial")
+public class RegistryServlet extends BaseServlet {
+
+	private static final String HEADER_QUEUE_NAME = "X-AppEngine-QueueName";
+
+	@Override
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		if (req.getHeader(HEADER_QUEUE_NAME) == null) {
+			throw new IOException("Missing header " + HEADER_QUEUE_NAME);
+		}
+		String[] oldIds = getParameterValues(req, RegistryChanges.PARAMETER_OLD_ID);
+		String[] newIds = getParameterValues(req, RegistryChanges.PARAMETER_NEW_ID);
+		if (oldIds.length != newIds.length) {
+			logger.severe("Mismatched registration ids, dropping task");
+			setSuccess(resp);
+			return;
+		}
+		Map<String, String> canonicalIds = new HashMap<String, String>();
+		for (int i = 0; i < oldIds.length; i++) {
+			canonicalIds.put(oldIds[i], newIds[i]);
+		}
+		List<String> unregistered = Arrays.asList(getParameterValues(req,
+				RegistryChanges.PARAMETER_UNREGISTER));
+
+		if (!canonicalIds.isEmpty() || !unregistered.isEmpty()) {
+			Datastore.applyRegistryChanges(canonicalIds, unregistered);
+		}
+		setSuccess(resp);
+	}
+
+	// 同じ名前のパラメーターの値を全て返します。指定がない場合は空の配列を返します。
+	private String[] getParameterValues(HttpServletRequest req, String parameter) {
+		String[] values = req.getParameterValues(parameter);
+		return values != null ? values : new String[0];
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff for the recipients of a message that could not be
+ * reached.
+ * <p>
+ * Each recipient carries its own attempt count, so a retry only contains the
+ * recipients that failed and gives up on each of them after
+ * {@link #MAX_ATTEMPTS}.
+ */
+// 送信に失敗した端末に再送するまでの待ち時間と、再送を諦める回数を決めるクラスです。
+final class RetryPolicy {
+
+	// 1つの端末に送信を試みる回数の上限です。
+	static final int MAX_ATTEMPTS = 5;
+	private static final long INITIAL_DELAY_MILLIS = 2000;
+	private static final long MAX_DELAY_MILLIS = 10 * 60 * 1000;
+
+	private static final Random random = new Random();
+
+	private RetryPolicy() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Whether a recipient that failed after the given number of attempts may
+	 * be tried again.
+	 */
+	static boolean canRetry(int attempts) {
+		return attempts < MAX_ATTEMPTS;
+	}
+
+	/**
+	 * Returns how long to wait before the next attempt.
+	 *
+	 * @param attempts
+	 *            attempts made so far, at least 1.
+	 * @param retryAfterMillis
+	 *            delay requested by the server, or 0.
+	 */
+	// 待ち時間は失敗するたびに2倍にし、同時に失敗したタスクが一斉に再送しないよう後半の半分をランダムにします。
+	// サーバーからRetry-Afterで指定された時間の方が長い場合はそちらを使用します。
+	static long delayMillis(int attempts, long retryAfterMillis) {
+		long delay = INITIAL_DELAY_MILLIS << Math.min(Math.max(attempts - 1, 0), 20);
+		delay = Math.min(delay, MAX_DELAY_MILLIS);
+		delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+		return Math.max(delay, retryAfterMillis);
+	}
+
+}
@@ -4,22 +4,26 @@ import static com.google.appengine.api.taskqueue.TaskOptions.Builder.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.logging.Logger;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 
-import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.jsoup.HttpStatusException;
+import net.sf.jsr107cache.Cache;
+
+import org.jsoup.Connection;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
@@ -29,45 +33,157 @@ import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 
 @SuppressWarnings("serial")
-public class ScheduleJsoupTask extends HttpServlet {
+public class ScheduleJsoupTask extends BaseServlet {
 
-	private final Logger logger = Logger.getLogger(getClass().getName());
+	private static final Log log = Log.getLog(ScheduleJsoupTask.class);
 
-	private Document document;
 	private Transaction txn;
 
 	private static final String ENTITY_KIND = "Jsoup";
 	private static final String ENTITY_KEY = "Document";
+	// 前回取得した内容をmemcacheに保存する期間です。保存する際に上書きします。
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 24 * 60 * 60;
+
+	private static final Cache memcache = CacheUtilities.createCache(ENTITY_KIND,
+			MEMCACHE_EXPIRATION_SECONDS);
 	//	private static final String ACCESS_KEY_FIELD = "Html";
 	// スクレイピングするページのURLを指定します。
 	private static final String URL = "http://pad.gungho.jp/member/index.html";
 //	private static final String URL = "http://www5a.biglobe.ne.jp/~yu-ayase/pad/";
+
+	private static final int HTTP_OK = 200;
+	private static final int HTTP_NOT_MODIFIED = 304;
+
+	// 詳細ページ取得の並列数、1ページあたりのタイムアウト、全体の期限の初期値です。
+	// web.xmlのinit-paramで変更できます。
+	private static final int DEFAULT_FETCH_PARALLELISM = 8;
+	private static final int DEFAULT_FETCH_TIMEOUT_MILLIS = 10000;
+	private static final int DEFAULT_FETCH_DEADLINE_MILLIS = 30000;
+
+	// スクレイピングするページのURLと、相対パスのリンクを補完するためのURLです。
+	// init-paramのindexUrlでローカルのテスト用サーバーなどに変更できます。
+	private String indexUrl;
+	private String baseUrl;
+
+	private DetailFetcher detailFetcher;
+
+	@Override
+	public void init() throws ServletException {
+		indexUrl = getInitParameter("indexUrl");
+		if (indexUrl == null || indexUrl.trim().length() == 0) {
+			indexUrl = URL;
+		}
+		baseUrl = indexUrl.substring(0, indexUrl.lastIndexOf('/') + 1);
+		detailFetcher = new DetailFetcher(
+				getIntParameter("fetchParallelism", DEFAULT_FETCH_PARALLELISM),
+				getIntParameter("fetchTimeoutMillis", DEFAULT_FETCH_TIMEOUT_MILLIS),
+				getIntParameter("fetchDeadlineMillis", DEFAULT_FETCH_DEADLINE_MILLIS));
+	}
+
+	// 告知のタイトルを取得します。
+	// 前回までに取得済みのURLはTitleCacheから取得し、初めて見るURLだけ詳細ページを並列に取得します。
+	// 一覧のリンク部分のHTMLが前回から変わったURLは、タイトルが変更された可能性があるため取得し直します。
+	private List<String> getTitles(List<String> urls, Map<String, String> markup) {
+		Map<String, String> fragmentHashes = new HashMap<String, String>(markup.size() * 2);
+		for (Map.Entry<String, String> entry : markup.entrySet()) {
+			fragmentHashes.put(entry.getKey(), PageFingerprint.hash(entry.getValue()));
+		}
+		Map<String, String> cached = TitleCache.getAll(urls, fragmentHashes);
+
+		Set<String> missingSet = new LinkedHashSet<String>(urls);
+		missingSet.removeAll(cached.keySet());
+		List<String> missing = new ArrayList<String>(missingSet);
+
+		Map<String, String> fetched = new HashMap<String, String>();
+		if (!missing.isEmpty()) {
+			List<String> titles = detailFetcher.fetchTitles(missing);
+			for (int i = 0; i < missing.size(); i++) {
+				// 取得に失敗したページはキャッシュせず、次回もう一度取得します。
+				if (!DetailFetcher.PLACEHOLDER_TITLE.equals(titles.get(i))) {
+					fetched.put(missing.get(i), titles.get(i));
+				}
+			}
+			TitleCache.putAll(fetched, fragmentHashes);
+			TitleCache.purgeExpired();
+		}
+		log.log(Level.FINE, "fetchedDetails", "fetched", missing.size(), "links", urls.size());
+
+		List<String> titles = new ArrayList<String>(urls.size());
+		for (String url : urls) {
+			String title = cached.get(url);
+			if (title == null) {
+				title = fetched.get(url);
+			}
+			titles.add(title != null ? title : DetailFetcher.PLACEHOLDER_TITLE);
+		}
+		return titles;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
+		long startMillis = System.currentTimeMillis();
 
-		logger.info("ScheduleJsoupTaskが呼び出されました");
+		log.log(Level.FINE, "scheduleJsoupTask");
 
 		resp.setContentType("text/plain;charset=UTF-8");
 
+		// 前回取得したページのETag、Last-Modified、ハッシュ値を取得します。(通常はmemcacheから取得されます)
+		PageFingerprint previous = PageFingerprint.load();
+
 		// 指定したページをJsoupでスクレイピングする
 		// http://ja.wikipedia.org/wiki/%E3%82%A6%E3%82%A7%E3%83%96%E3%82%B9%E3%82%AF%E3%83%AC%E3%82%A4%E3%83%94%E3%83%B3%E3%82%B0
+		// 前回の検証子を付けた条件付きリクエストを送信し、更新がなければ304が返されます。
+		Connection.Response response;
 		try {
-			document = Jsoup.connect(URL).get();
+			Connection connection = Jsoup.connect(indexUrl)
+					.ignoreHttpErrors(true).ignoreContentType(true);
+			if (previous.etag != null) {
+				connection.header("If-None-Match", previous.etag);
+			}
+			if (previous.lastModified != null) {
+				connection.header("If-Modified-Since", previous.lastModified);
+			}
+			response = connection.execute();
+		} catch (IOException e) {
+			log.log(Level.WARNING, e, "fetchFailed", "url", indexUrl);
+			resp.getWriter().println("ページを取得できないため処理を中断します");
+			resp.getWriter().println("\n" + e);
+			return;
+		}
 
-		} catch (HttpStatusException e) {
+		if (response.statusCode() == HTTP_NOT_MODIFIED) {
+			resp.getWriter().println("\n変更なし(304)\n");
+			return;
+		}
+		if (response.statusCode() != HTTP_OK) {
 			resp.getWriter().println("メンテナンス中のため処理を中断します");
-			resp.getWriter().println("\n" + e);
+			resp.getWriter().println("\n" + response.statusCode() + " " + response.statusMessage());
 			return;
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 
+		// ページ全体のハッシュ値が前回と同じであれば解析せずに終了します。
+		String bodyHash = PageFingerprint.hash(response.bodyAsBytes());
+		if (bodyHash.equals(previous.bodyHash)) {
+			PageFingerprint current = new PageFingerprint(response.header("ETag"),
+					response.header("Last-Modified"), bodyHash,
+					previous.fragmentHash);
+			if (!current.equals(previous)) {// 検証子だけが変わった場合に保存し直します。
+				current.save();
+			}
+			resp.getWriter().println("\n変更なし\n");
+			return;
+		}
+
+		Document document = response.parse();
+
 		// 1ページ15行分のtitleとURLをデータストアに保存するため
 		// ArrayListに整形したデータを格納します。
 		ArrayList<String> SUBJECT = new ArrayList<String>();
 		ArrayList<String> URL = new ArrayList<String>();
+		// URLごとのリンク部分のHTMLです。タイトルの再取得が必要か判断するために使用します。
+		Map<String, String> markup = new HashMap<String, String>();
 		// spanタグ内のaタグ要素を取得します。
 		// <span><a>hoge</a><span>
 		// 実行結果→<a>hoge</a>
@@ -77,9 +193,10 @@ public class ScheduleJsoupTask extends HttpServlet {
 		for (Element tmp : href) {
 			String date = tmp.attr("href").toString();// 取得したHTMLからテキスト要素のみ取り出します。
 			if (!date.startsWith("http")) {
-				date = "http://pad.gungho.jp/member/" + date;
+				date = baseUrl + date;
 			}
 			URL.add(date);
+			addMarkup(markup, date, tmp);
 		}
 
 		Elements banner_block = document.select("#banner_block li a");// 
@@ -87,34 +204,26 @@ public class ScheduleJsoupTask extends HttpServlet {
 		for (Element tmp : banner_block) {
 			String date = tmp.attr("href").toString();// 取得したHTMLからテキスト要素のみ取り出します。
 			if (!date.startsWith("http")) {
-				date = "http://pad.gungho.jp/member/" + date;
+				date = baseUrl + date;
 			}
 
 			URL.add(date);
+			addMarkup(markup, date, tmp);
 		}
 
-		for (int i = 0; i < URL.size(); i++) {
-			Document news = null;
-			try {
-				news = Jsoup.connect(URL.get(i)).get();
-			} catch (HttpStatusException e) {
-				return;
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
-			if (news != null) {
-				Elements title = news.getElementsByTag("title");
-				String date = "";
-				for (Element tmp : title) {					
-					date = date + tmp.text();// 取得したHTMLからテキスト要素のみ取り出します。
-					date = date.replaceAll("｜パズル＆ドラゴンズ", "");// 余計な文字を削除し文字列を整形します。
-					date = date.replaceAll("｜ パズル＆ドラゴンズ", "");// 余計な文字を削除し文字列を整形します。				
-				}
-				SUBJECT.add(date);
-			} 
+		// 告知部分のHTMLのハッシュ値が前回と同じであれば、詳細ページの取得やデータストアの読み込みをせずに終了します。
+		PageFingerprint current = new PageFingerprint(response.header("ETag"),
+				response.header("Last-Modified"), bodyHash,
+				PageFingerprint.hash(href.outerHtml() + banner_block.outerHtml()));
+		if (current.fragmentHash.equals(previous.fragmentHash)) {
+			current.save();
+			resp.getWriter().println("\n変更なし\n");
+			return;
 		}
 
+		// 告知のタイトルをURLと同じ順番で格納します。
+		SUBJECT.addAll(getTitles(URL, markup));
+
 		resp.getWriter().println("\n最新の内容\n");
 //		resp.getWriter().println(SUBJECT.size() + " > " + URL.size());
 		for (int i = 0; i < URL.size(); i++) {
@@ -123,16 +232,17 @@ public class ScheduleJsoupTask extends HttpServlet {
 		}
 
 		// データストアのインスタンスを取得します。
-		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
 		// キーを生成します。(ここではJsoupというカインドにDocumentというname属性を持ったプライマリーキーを設定します)
 		Key key = KeyFactory.createKey(ENTITY_KIND, ENTITY_KEY);
 		Entity entity;
 		try {
-			// データストアからキーに該当するエンティティを取得します。
-			entity = datastore.get(key);
+			entity = loadSnapshot();
 		} catch (EntityNotFoundException e) {
 			// 初回起動時、エンティティが存在しない場合の処理です。
 
+			int pending = dropPending(SUBJECT, URL, null, null);
+
 			txn = datastore.beginTransaction();
 			try {
 				entity = new Entity(key);
@@ -147,6 +257,8 @@ public class ScheduleJsoupTask extends HttpServlet {
 					txn.rollback();
 				}
 			}
+			memcache.put(ENTITY_KEY, entity);
+			saveFingerprint(current, pending);
 			resp.getWriter().println("\n初回起動時のため比較するデータがありません!");
 			return;
 
@@ -155,46 +267,49 @@ public class ScheduleJsoupTask extends HttpServlet {
 		ArrayList<String> preSUBJECT = (ArrayList<String>) entity.getProperty("Subject");
 		ArrayList<String> preURL = (ArrayList<String>) entity.getProperty("Url");
 		resp.getWriter().println("\n前回の内容\n");
-		for (int i = 0; i < preURL.size(); i++) {
+		for (int i = 0; preURL != null && i < preURL.size(); i++) {
 			resp.getWriter().println(preSUBJECT.get(i) + " > " + preURL.get(i));
 		}
-			
-		// 前回のデータと比較して新しい告知が何件存在するか検索します。
-		for (int i = 0; i < URL.size(); i++) {
-			if (preURL.indexOf(URL.get(i)) == -1) {
-				logger.info(">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>" + (i + 1) + "件目: " + SUBJECT.get(i) + "\n");
-			}
+
+		// タイトルを取得できなかった新しい告知は、今回の通知と保存する内容から除きます。
+		int pending = dropPending(SUBJECT, URL, preSUBJECT, preURL);
+		if (pending > 0) {
+			resp.getWriter().println("\nタイトルを取得できなかった告知が" + pending + "件あるため次回通知します");
+		}
+
+		// 前回のデータと比較して、追加・削除・タイトルが変更された告知を求めます。
+		AnnouncementDiff diff = new AnnouncementDiff(preSUBJECT, preURL, SUBJECT, URL);
+		for (int i : diff.getAdded()) {
+			log.log(Level.INFO, "added", "index", i + 1, "subject", SUBJECT.get(i));
 		}
 
 		// 件名のArrayListを比較して前回から変更があるかないかを判断します。
-		if (URL.equals(preURL)) {
+		if (URL.equals(preURL) && diff.getRetitled().isEmpty()) {
+			saveFingerprint(current, pending);
 			resp.getWriter().println("\n変更なし\n");
 
 		} else {
 			resp.getWriter().println("\n変更あり\n");
 
-			// 前回のデータと比較して新しい告知が何件存在するか検索します。
-			int index = 0;
-			for (int i = 0; i < URL.size(); i++) {
-				if (preURL.indexOf(URL.get(i)) == -1) {
-					index++;
-				}
-			}
+			// 新しい告知の件数です。
+			int index = diff.getAdded().size();
 
 			if (index == 0) {
 				resp.getWriter().println("\n新しい告知はなし\n");
 			} else {
 
 				resp.getWriter().println("\n新しい告知が" + index + "件あります");
-				//ServletContextインタフェースのオブジェクトを取得します。
-				ServletContext sc = getServletContext();
-				//データをapplicationスコープで保存します。
-				sc.setAttribute("SUBJECT", SUBJECT);
-				sc.setAttribute("URL", URL);
-				sc.setAttribute("preURL", preURL);
+				// 変更内容をデータストアに保存し、そのキーをタスクキューで受け渡します。
+				ChangeEvent event = ChangeEvent.create(SUBJECT, URL, diff);
+				// 変更内容のキーを相関IDとして、取得を開始してから検出するまでの時間を記録します。
+				DeliveryTracker tracker = new DeliveryTracker(event.getKey());
+				tracker.record(DeliveryTracker.STAGE_SCRAPE,
+						event.getCreated() - startMillis);
+				tracker.save();
 
 				Queue queue = QueueFactory.getQueue("send");
-				queue.add(withUrl("/sendAll"));
+				queue.add(withUrl("/sendAll").param(
+						SendMessageServlet.PARAMETER_EVENT, event.getKey()));
 			}
 
 			// トランザクション処理を開始します。
@@ -213,8 +328,81 @@ public class ScheduleJsoupTask extends HttpServlet {
 					txn.rollback();
 				}
 			}
+			memcache.put(ENTITY_KEY, entity);
+			saveFingerprint(current, pending);
 
 		}
 
 	}
+
+	/**
+	 * Loads the titles and URLs saved by the previous scrape, from memcache if
+	 * possible.
+	 */
+	// 前回取得したタイトルとURLのエンティティを取得します。
+	// memcacheに保存されている場合は、データストアにアクセスしません。
+	static Entity loadSnapshot() throws EntityNotFoundException {
+		Entity entity = (Entity) memcache.get(ENTITY_KEY);
+		if (entity == null) {
+			// データストアからキーに該当するエンティティを取得します。
+			entity = InstrumentedDatastore.getDatastoreService().get(
+					KeyFactory.createKey(ENTITY_KIND, ENTITY_KEY));
+			memcache.put(ENTITY_KEY, entity);
+		}
+		return entity;
+	}
+
+	// 同じURLへのリンクが複数ある場合は、それらのHTMLをつなげて保持します。
+	private static void addMarkup(Map<String, String> markup, String url, Element link) {
+		String html = markup.get(url);
+		markup.put(url, html == null ? link.outerHtml() : html + link.outerHtml());
+	}
+
+	// タイトルを取得できなかった告知を取り除き、その件数を返します。
+	// 前回の内容にあるURLは前回のタイトルを使います。新しいURLは保存する内容にも含めないため、
+	// 次回タイトルを取得できた時点で追加された告知として通知されます。
+	private static int dropPending(List<String> subjects, List<String> urls,
+			List<String> preSubjects, List<String> preUrls) {
+		int pending = 0;
+		Map<String, Integer> previousIndexes = null;
+		for (int i = subjects.size() - 1; i >= 0; i--) {
+			if (!DetailFetcher.PLACEHOLDER_TITLE.equals(subjects.get(i))) {
+				continue;
+			}
+			// 前回のURLの位置は、最初に必要になった時点で一度だけ求めます。
+			if (previousIndexes == null) {
+				previousIndexes = indexOf(preUrls);
+			}
+			Integer previous = previousIndexes.get(urls.get(i));
+			if (previous != null) {
+				subjects.set(i, preSubjects.get(previous));
+			} else {
+				subjects.remove(i);
+				urls.remove(i);
+				pending++;
+			}
+		}
+		return pending;
+	}
+
+	// URLごとに、リストの中で最初に現れる位置を求めます。(List.indexOfと同じ位置になります)
+	private static Map<String, Integer> indexOf(List<String> urls) {
+		if (urls == null) {
+			return new HashMap<String, Integer>();
+		}
+		Map<String, Integer> indexes = new HashMap<String, Integer>(urls.size() * 2);
+		for (int i = urls.size() - 1; i >= 0; i--) {
+			indexes.put(urls.get(i), i);
+		}
+		return indexes;
+	}
+
+	// 今回のページの検証子とハッシュ値を保存します。
+	// タイトルを取得できなかった告知がある場合は、次回も詳細ページを取得し直すため保存しません。
+	private void saveFingerprint(PageFingerprint fingerprint, int pending) {
+		if (pending > 0) {
+			return;
+		}
+		fingerprint.save();
+	}
 }
@@ -18,16 +18,18 @@ package com.ayaseya.padnotificationgae;
 import static com.google.appengine.api.taskqueue.TaskOptions.Builder.*;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 import java.util.logging.Logger;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.taskqueue.TaskOptions.Method;
 
@@ -37,86 +39,248 @@ import com.google.appengine.api.taskqueue.TaskOptions.Method;
  * This servlet is used just by the browser (i.e., not device).
  */
 // 登録されている全てのデバイスにメッセージを送信するためのサーブレットです。
+// データストアのクエリカーソルを使用して1ページ(1000件)ずつ読み込み、
+// 一定のページ数を処理しても続きがある場合は、カーソルを付けて自分自身をタスクキューに登録します。
 @SuppressWarnings("serial")
 public class SendAllMessagesServlet extends BaseServlet {
 
+	static final String PARAMETER_CURSOR = "cursor";
+	static final String PARAMETER_SHARD = "shard";
+	static final String PARAMETER_START_KEY = "startKey";
+	static final String PARAMETER_END_KEY = "endKey";
+	// 1回の一斉送信を識別する値です。タスク名の生成に使用し、リトライで同じタスクが重複して登録されないようにします。
+	static final String PARAMETER_RUN = "run";
+
+	private static final String HEADER_QUEUE_NAME = "X-AppEngine-QueueName";
+	private static final String HEADER_TASK_NAME = "X-AppEngine-TaskName";
+
+	// 1回のリクエストで読み込むページ数の初期値です。web.xmlのinit-paramで変更できます。
+	private static final int DEFAULT_PAGES_PER_TASK = 10;
+	// 最初のタスクでデバイスのキーの範囲を分割する数の上限です。web.xmlのinit-paramで変更できます。
+	private static final int DEFAULT_SHARDS = 16;
+	// 1つの送信タスクにまとめるページ数の初期値です。送信タスクは各ページを同時に送信します。
+	private static final int DEFAULT_MULTICASTS_PER_TASK = 4;
+
 	private final Logger logger = Logger.getLogger(getClass().getName());
 
-	
+	private int pagesPerTask;
+	private int shards;
+	private int multicastsPerTask;
+
+	@Override
+	public void init(ServletConfig config) throws ServletException {
+		super.init(config);
+		pagesPerTask = Math.max(1, getIntParameter("pagesPerTask", DEFAULT_PAGES_PER_TASK));
+		shards = Math.max(1, getIntParameter("shards", DEFAULT_SHARDS));
+		multicastsPerTask = Math.max(1,
+				getIntParameter("multicastsPerTask", DEFAULT_MULTICASTS_PER_TASK));
+	}
+
 	/**
 	 * Processes the request to add a new message.
 	 */
 	@Override
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException, ServletException {
+		long startMillis = System.currentTimeMillis();
 		
 		logger.info("SendAllMessagesServletが呼び出されました");
-		
-		/**
-		 * 登録device数が増加した場合、データストアから読み込む処理の部分も
-		 * タスクキューで実行しなければならない？
-		 */
-		List<String> devices = Datastore.getDevices();// リストに登録済みのレジストレーションIDを取得する。
+
+		// 送信する変更内容のキーです。指定がない場合(管理画面のボタンから送信した場合)は最新の変更内容を送信します。
+		String eventKey = req.getParameter(SendMessageServlet.PARAMETER_EVENT);
+		if (isEmptyOrNull(eventKey)) {
+			ChangeEvent latest = ChangeEvent.loadLatest();
+			eventKey = latest != null ? latest.getKey() : null;
+		}
+		// 前のタスクから引き継いだカーソルです。最初のページの場合はnullです。
+		String cursor = getOptionalParameter(req, PARAMETER_CURSOR);
+		// 分割されたタスクが担当するキーの範囲です。
+		boolean shard = req.getParameter(PARAMETER_SHARD) != null;
+		String startKey = getOptionalParameter(req, PARAMETER_START_KEY);
+		String endKey = getOptionalParameter(req, PARAMETER_END_KEY);
+		// 最初のタスクでは、リトライされても変わらないタスク名を識別子にします。
+		// 管理画面から送信した場合は、送信ごとに新しい識別子を作成します。
+		String run = getOptionalParameter(req, PARAMETER_RUN);
+		if (run == null) {
+			run = req.getHeader(HEADER_TASK_NAME);
+		}
+		if (isEmptyOrNull(run)) {
+			run = UUID.randomUUID().toString();
+		}
+
 		String status;
-		if (devices.isEmpty()) {// レジストレーションIDが一つも登録されていなかった場合の処理
-			status = "Message ignored as there is no device registered!";
-		} else {// レジストレーションIDが登録されていた場合の処理
-			// QueueFactoryクラスのgetQueueメソッドで名前(ここではgcm)を指定してキューを取得します(queue.xmlで定義した名前です)
-			Queue queue = QueueFactory.getQueue("gcm");
-			// NOTE: check below is for demonstration purposes; a real
-			// application
-			// could always send a multicast, even for just one recipient
-			// 登録されているデバイス数が1つだった場合の処理
-			if (devices.size() == 1) {
-				// send a single message using plain post
-				// レジストレーションIDを取得します。
-				String device = devices.get(0);
-				// タスクキューにパラメーターを設定し実行します。
-				queue.add(withUrl("/send")
-						.param(SendMessageServlet.PARAMETER_DEVICE, device));
-				
-				status = "Single message queued for registration id " + device;
-				
-				logger.info("SendAllMessagesServlet…)"+status.toString());
-				
-			} else {// 登録されているデバイスが複数だった場合の処理
-				// send a multicast message using JSON
-				// must split in chunks of 1000 devices (GCM limit)
-				// デバイス数を取得します。
-				int total = devices.size();
-				// デバイス数分のリストのインスタンスを生成します。
-				List<String> partialDevices = new ArrayList<String>(total);
-				int counter = 0;
-				int tasks = 0;
-				for (String device : devices) {// 拡張for文内でタスクキューを次々と実行（予約）していきます。
-					counter++;
-					partialDevices.add(device);// リストにレジストレーションIDを格納します。
-					int partialSize = partialDevices.size();
-					if (partialSize == Datastore.MULTICAST_SIZE
-							|| counter == total) {// 上限（1000件）に達した、もしくはカウンターが全てのデバイス登録数と一致したかを確認します。
-						String multicastKey = Datastore
-								.createMulticast(partialDevices);// エンコードされたキー（プライマリーキー）を取得します。
-						logger.fine("Queuing " + partialSize
-								+ " devices on multicast " + multicastKey);
-						// タスクを呼び出すインスタンスを生成します。パラメータ等は自由に設定できます。
-						TaskOptions taskOptions = TaskOptions.Builder
-								.withUrl("/send")
-								.param(SendMessageServlet.PARAMETER_MULTICAST,multicastKey).method(Method.POST);
-						queue.add(taskOptions);// タスクキューに処理が登録され、非同期に実行されます。
-						partialDevices.clear();// リストの全要素を削除します。
-						tasks++;
-					}
-				}
-				status = "Queued tasks to send " + tasks
-						+ " multicast messages to " + total + " devices";
-				logger.info("SendAllMessagesServlet…)"+status.toString());
+		if (eventKey == null) {
+			status = "Message ignored as there is no change to send!";
+		} else if (!shard && cursor == null) {
+			if (req.getHeader(HEADER_QUEUE_NAME) != null) {
+				recordFanOut(eventKey, startMillis);
 			}
+			status = split(run, eventKey);
+		} else {
+			status = fanOut(run, eventKey, cursor, startKey, endKey);
 		}
+		logger.info("SendAllMessagesServlet…)" + status);
 
+		if (req.getHeader(HEADER_QUEUE_NAME) != null) {
+			// タスクキューから呼び出された場合はホーム画面を表示する必要がないため、処理の成功だけを返します。
+			setSuccess(resp);
+			return;
+		}
 		// requestスコープのデータを登録します。（スコープとは、データの有効範囲のことです。）
 		req.setAttribute(HomeServlet.ATTRIBUTE_STATUS, status.toString());
 		// homeのページにフォワード（遷移）します。
 		getServletContext().getRequestDispatcher("/home").forward(req, resp);
 	}
 
+	// デバイスのキーの範囲を分割し、範囲ごとに送信タスクを作成するタスクを登録します。
+	// 各範囲は独立したタスクとして並列に処理され、失敗した場合もその範囲だけがリトライされます。
+	// タスク名は範囲から決まるため、このタスクがリトライされても同じ範囲のタスクは重複して登録されません。
+	private String split(String run, String eventKey) {
+		List<String> splitKeys = Datastore.getDeviceSplitKeys(shards);
+		if (splitKeys.isEmpty()) {
+			// 分割するほどデバイスが登録されていない場合は、このリクエストで処理します。
+			return fanOut(run, eventKey, null, null, null);
+		}
+		TaskBatcher batcher = new TaskBatcher(QueueFactory.getQueue("send"));
+		String startKey = null;
+		for (int i = 0; i <= splitKeys.size(); i++) {
+			String endKey = i < splitKeys.size() ? splitKeys.get(i) : null;
+			batcher.add(newFanOutTask(run, eventKey, null, startKey, endKey));
+			startKey = endKey;
+		}
+		int tasks = batcher.flush();
+		return "Queued " + tasks + " shard tasks";
+	}
+
+	// 1ページ(最大1000件)ずつデバイスのキーを読み込んで送信タスクを作成し、まとめてタスクキューに登録します。
+	// 1回のリクエストで処理するページ数を超えて続きがある場合は、次のページのタスクを登録します。
+	// 送信タスクの名前はキーの範囲から決まるため、このタスクがリトライされても同じ端末に重複して送信しません。
+	private String fanOut(String run, String eventKey, String cursor,
+			String startKey, String endKey) {
+		// QueueFactoryクラスのgetQueueメソッドで名前(ここではgcm)を指定してキューを取得します(queue.xmlで定義した名前です)
+		Queue queue = QueueFactory.getQueue("gcm");
+		TaskBatcher batcher = new TaskBatcher(queue);
+
+		int total = 0;
+		boolean first = cursor == null && startKey == null && endKey == null;
+		// 連続したページをmulticastsPerTask件ずつ1つの送信タスクにまとめます。
+		String groupFirstKey = null;
+		String groupLastKey = null;
+		int groupPages = 0;
+		int groupSize = 0;
+		for (int pages = 0; pages < pagesPerTask; pages++) {
+			// 登録済みのデバイスを1ページ分キーだけで読み込み、その範囲を取得します。
+			Datastore.DeviceRange range = Datastore.getDeviceRange(cursor,
+					startKey, endKey);
+			if (range == null) {
+				cursor = null;
+				break;
+			}
+			cursor = range.getNextCursor();
+			if (groupPages == 0) {
+				groupFirstKey = range.getFirstKey();
+			}
+			groupLastKey = range.getLastKey();
+			groupPages++;
+			groupSize += range.getSize();
+			total += range.getSize();
+
+			if (groupPages == multicastsPerTask) {
+				batcher.add(newSendTask(run, eventKey, groupFirstKey, groupLastKey,
+						groupSize));
+				groupPages = 0;
+				groupSize = 0;
+			}
+			if (cursor == null) {
+				break;
+			}
+		}
+		if (groupPages > 0) {
+			batcher.add(newSendTask(run, eventKey, groupFirstKey, groupLastKey,
+					groupSize));
+		}
+		int tasks = batcher.flush();
+
+		if (tasks == 0 && first) {// レジストレーションIDが一つも登録されていなかった場合の処理
+			return "Message ignored as there is no device registered!";
+		}
+		if (cursor != null) {
+			// 次のページを読み込むタスクを登録します。
+			try {
+				QueueFactory.getQueue("send").add(
+						newFanOutTask(run, eventKey, cursor, startKey, endKey));
+			} catch (TaskAlreadyExistsException e) {
+				// リトライ前のリクエストで登録済みです。
+			}
+		}
+		return "Queued " + tasks + " tasks to send multicast messages to "
+				+ total + " devices" + (cursor != null ? ", more pages queued" : "");
+	}
+
+	// send a multicast message using JSON
+	// レジストレーションIDはMulticastエンティティにコピーせず、送信タスクにはキーの範囲だけを渡します。
+	// 送信タスクはその範囲のデバイスをデータストアから直接読み込みます。
+	private TaskOptions newSendTask(String run, String eventKey, String firstKey,
+			String lastKey, int size) {
+		logger.fine("Queuing " + size + " devices from " + firstKey + " to "
+				+ lastKey);
+		// タスクを呼び出すインスタンスを生成します。パラメータ等は自由に設定できます。
+		return TaskOptions.Builder
+				.withUrl("/send")
+				.taskName(taskName("send", run, eventKey, firstKey, lastKey))
+				.param(SendMessageServlet.PARAMETER_FIRST_KEY, firstKey)
+				.param(SendMessageServlet.PARAMETER_LAST_KEY, lastKey)
+				.param(SendMessageServlet.PARAMETER_EVENT, eventKey)
+				.param(SendMessageServlet.PARAMETER_QUEUED_AT,
+						String.valueOf(System.currentTimeMillis()))
+				.method(Method.POST);
+	}
+
+	// 変更内容を検出してから、このサーブレットが送信を開始するまでの時間を記録します。
+	private void recordFanOut(String eventKey, long startMillis) {
+		ChangeEvent event = ChangeEvent.load(eventKey);
+		if (event != null) {
+			DeliveryTracker tracker = new DeliveryTracker(eventKey);
+			tracker.record(DeliveryTracker.STAGE_FAN_OUT,
+					startMillis - event.getCreated());
+			tracker.save();
+		}
+	}
+
+	// パラメーターの値を返します。指定がない場合はnullを返します。
+	private String getOptionalParameter(HttpServletRequest req, String parameter) {
+		String value = req.getParameter(parameter);
+		return isEmptyOrNull(value) ? null : value.trim();
+	}
+
+	// 指定した範囲のデバイスを読み込むタスクを作成します。
+	private TaskOptions newFanOutTask(String run, String eventKey, String cursor,
+			String startKey, String endKey) {
+		TaskOptions task = withUrl("/sendAll")
+				.taskName(taskName("fanout", run, eventKey, startKey, endKey, cursor))
+				.param(PARAMETER_RUN, run)
+				.param(SendMessageServlet.PARAMETER_EVENT, eventKey)
+				.param(PARAMETER_SHARD, "1").method(Method.POST);
+		if (cursor != null) {
+			task.param(PARAMETER_CURSOR, cursor);
+		}
+		if (startKey != null) {
+			task.param(PARAMETER_START_KEY, startKey);
+		}
+		if (endKey != null) {
+			task.param(PARAMETER_END_KEY, endKey);
+		}
+		return task;
+	}
+
+	// 値から決まるタスク名を作成します。同じ名前のタスクは一定期間登録できないため、重複して登録されません。
+	// タスク名に使用できない文字が含まれないよう、値はハッシュ値にします。
+	private static String taskName(String prefix, String... values) {
+		StringBuilder text = new StringBuilder();
+		for (String value : values) {
+			text.append(value != null ? value : "").append('\n');
+		}
+		return prefix + "-" + PageFingerprint.hash(text.toString());
+	}
+
 }
@@ -17,20 +17,24 @@ package com.ayaseya.padnotificationgae;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 import javax.servlet.ServletConfig;
-import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.ayaseya.padnotificationgae.PayloadSender.MulticastResponse;
 import com.google.android.gcm.server.Constants;
 import com.google.android.gcm.server.Message;
 import com.google.android.gcm.server.MulticastResult;
 import com.google.android.gcm.server.Result;
-import com.google.android.gcm.server.Sender;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
 
 /**
  * Servlet that sends a message to a device.
@@ -48,35 +52,30 @@ public class SendMessageServlet extends BaseServlet {
 	private static final int MAX_RETRY = 3;
 
 	static final String PARAMETER_DEVICE = "device";
+	// 1端末に送信するタスクで、その端末への送信を既に試みた回数です。省略した場合は0回として扱います。
+	static final String PARAMETER_ATTEMPTS = "attempts";
 	static final String PARAMETER_MULTICAST = "multicastKey";
-	ArrayList<String> URL;
-	ArrayList<String> preURL;
-	ArrayList<String> SUBJECT;
+	static final String PARAMETER_EVENT = "event";
+	static final String PARAMETER_FIRST_KEY = "firstKey";
+	static final String PARAMETER_LAST_KEY = "lastKey";
+	// タスクの実行が予定された時刻(ミリ秒)です。キューで待った時間を記録するために使用します。
+	static final String PARAMETER_QUEUED_AT = "queuedAt";
 
-	ArrayList<Integer> updateIndex;
+	// 1つのタスクで同時に送信するマルチキャストの数の初期値です。web.xmlのinit-paramで変更できます。
+	private static final int DEFAULT_SEND_CONCURRENCY = 4;
 
-	private Sender sender;
+	// 送信結果ごとのエラーは大量に発生する場合があるため、1分あたりの出力件数を制限します。
+	private static final Log.Sampler RESULT_ERRORS = Log.sampler(20, 60 * 1000);
+
+	private static final Log log = Log.getLog(SendMessageServlet.class);
+
+	private int sendConcurrency;
 
 	@Override
 	public void init(ServletConfig config) throws ServletException {
 		super.init(config);
-		sender = newSender(config);
-	}
-
-	/**
-	 * Creates the {@link Sender} based on the servlet settings.
-	 */
-	protected Sender newSender(ServletConfig config) {
-		String key = (String) config.getServletContext().getAttribute(
-				ApiKeyInitializer.ATTRIBUTE_ACCESS_KEY);
-		return new Sender(key);
-	}
-
-	/**
-	 * Indicates to App Engine that this task should be retried.
-	 */
-	private void retryTask(HttpServletResponse resp) {
-		resp.setStatus(500);// 500=SC_INTERNAL_SERVER_ERROR…サーバー側の問題によりエラーが発生した場合のステータスです。
+		sendConcurrency = Math.max(1,
+				getIntParameter("sendConcurrency", DEFAULT_SEND_CONCURRENCY));
 	}
 
 	/**
@@ -89,90 +88,112 @@ public class SendMessageServlet extends BaseServlet {
 	/**
 	 * Processes the request to add a new message.
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
 			throws IOException {
+		long startMillis = System.currentTimeMillis();
 		if (req.getHeader(HEADER_QUEUE_NAME) == null) {
 			throw new IOException("Missing header " + HEADER_QUEUE_NAME);
 		}
 		// ヘッダー名に対応するHTTPヘッダ情報を返します。
 		// HEADER_QUEUE_COUNT="X-AppEngine-TaskRetryCount"
 		String retryCountHeader = req.getHeader(HEADER_QUEUE_COUNT);
-		logger.fine("retry count: " + retryCountHeader);
+		log.log(Level.FINE, "send", "retryCount", retryCountHeader);
 		if (retryCountHeader != null) {
 			int retryCount = Integer.parseInt(retryCountHeader);
 			if (retryCount > MAX_RETRY) {// リトライ回数が設定していた回数を超えると処理を中止します。
-				logger.severe("Too many retries, dropping task");
+				log.log(Level.SEVERE, "tooManyRetries", "retryCount", retryCount);
 				taskDone(resp);
 				return;
 			}
 		}
 		//
 		String regId = req.getParameter(PARAMETER_DEVICE);
+		String firstKey = req.getParameter(PARAMETER_FIRST_KEY);
+		String lastKey = req.getParameter(PARAMETER_LAST_KEY);
+		String multicastKey = req.getParameter(PARAMETER_MULTICAST);
 
-		//ServletContextインタフェースのオブジェクトを取得
-		ServletContext sc = getServletContext();
-
-		SUBJECT = (ArrayList<String>) sc.getAttribute("SUBJECT");
-		URL = (ArrayList<String>) sc.getAttribute("URL");
-		preURL = (ArrayList<String>) sc.getAttribute("preURL");
-
-		updateIndex = new ArrayList<Integer>();
-
-		// 前回のデータと比較して新しい告知が何件存在するか検索します。
-		for (int i = 0; i < URL.size(); i++) {
-			if (preURL.indexOf(URL.get(i)) == -1) {
-				updateIndex.add(i);
-				logger.info(">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>" + (i + 1) + "件目: " + SUBJECT.get(i) + "\n");
-
+		// 送信先の読み込みを非同期で開始し、変更内容の読み込みと並行して行います。
+		Future<List<String>> rangeRegIds = null;
+		Future<Datastore.PendingMulticast> pending = null;
+		if (regId == null) {
+			if (firstKey != null && lastKey != null) {
+				rangeRegIds = AsyncDatastore.getDevices(firstKey, lastKey);
+			} else if (multicastKey != null) {
+				pending = AsyncDatastore.getPendingMulticast(multicastKey);
 			}
 		}
 
-		if (regId != null) {
-			sendSingleMessage(regId, resp);// 1端末だった場合、メッセージを送信します。
+		// 送信する変更内容をタスクのパラメーターのキーから取得します。(どのインスタンスでも取得できます)
+		String eventKey = req.getParameter(PARAMETER_EVENT);
+		ChangeEvent event = eventKey != null ? ChangeEvent.load(eventKey) : null;
+		if (event == null) {
+			log.log(Level.SEVERE, "missingChangeEvent", "event", eventKey);
+			taskDone(resp);
 			return;
 		}
-		//
-		String multicastKey = req.getParameter(PARAMETER_MULTICAST);
-		if (multicastKey != null) {
-			sendMulticastMessage(multicastKey, resp);// 複数端末だった場合、メッセージを送信します。
-			return;
+
+		// 変更内容のキーを相関IDとして、各段階の所要時間を記録します。
+		DeliveryTracker tracker = new DeliveryTracker(event.getKey());
+		String queuedAt = req.getParameter(PARAMETER_QUEUED_AT);
+		if (!isEmptyOrNull(queuedAt)) {
+			tracker.record(DeliveryTracker.STAGE_QUEUE,
+					startMillis - Long.parseLong(queuedAt.trim()));
 		}
-		logger.severe("Invalid request!");//
-		taskDone(resp);
-		return;
+
+		if (regId != null) {
+			String attempts = req.getParameter(PARAMETER_ATTEMPTS);
+			sendSingleMessage(event, regId,
+					isEmptyOrNull(attempts) ? 0 : Integer.parseInt(attempts.trim()),
+					tracker, startMillis, resp);// 1端末だった場合、メッセージを送信します。
+		} else if (rangeRegIds != null) {
+			// キーの範囲で送信先が指定された場合の処理です。
+			sendRangeMessage(event, rangeRegIds, tracker, startMillis, resp);
+		} else if (pending != null) {
+			sendMulticastMessage(event, multicastKey, pending, tracker, startMillis,
+					resp);// 複数端末だった場合、メッセージを送信します。
+		} else {
+			log.log(Level.SEVERE, "invalidRequest");//
+			taskDone(resp);
+		}
+		tracker.save();
 	}
 
 	// 1端末にメッセージを送信する場合の処理
-	private void sendSingleMessage(String regId, HttpServletResponse resp) {
-		logger.info("Sending message to device " + regId);
+	// 送信に失敗した場合は、sendToDevicesと同じく送信を試みた回数を1増やして再送するタスクを登録します。
+	private void sendSingleMessage(ChangeEvent event, String regId, int attempts,
+			DeliveryTracker tracker, long startMillis, HttpServletResponse resp) {
+		log.log(Level.FINE, "sendSingle", "regId", regId);
 		//		Message message = new Message.Builder().build();
 
-		Message.Builder builder = new Message.Builder();
-		builder.addData("INDEX", String.valueOf(updateIndex.size())); // 更新された件数です。
-		for (int i = 0; i < updateIndex.size(); i++) {
-
-			builder.addData("URL" + (i + 1), URL.get(updateIndex.get(i)));
-			builder.addData("SUBJECT" + (i + 1), SUBJECT.get(updateIndex.get(i)));
-
-		}
-		Message message = builder.build();
+		// 変更内容ごとに一度だけ作成されたメッセージを使用します。
+		Message message = BroadcastPayload.forEvent(event).getMessage();
 
 		Result result;
+		long start = System.nanoTime();
 		try {
-			result = sender.sendNoRetry(message, regId);
+			result = SenderRegistry.get().sendNoRetry(message, regId);
+			Metrics.recordSince("gcm.single", start);
 		} catch (IOException e) {
-			logger.log(Level.SEVERE, "Exception posting " + message, e);
-			taskDone(resp);
-			return;
+			Metrics.increment("gcm.errors");
+			log.log(Level.SEVERE, e, "postFailed", "regId", regId);
+			result = null;
 		}
 		if (result == null) {
-			retryTask(resp);
+			// タスク全体をリトライせず、この端末だけを再送するタスクを登録します。
+			RetryBatch retry = new RetryBatch();
+			retry.add(regId, attempts + 1);
+			scheduleRetry(event, retry);
+			taskDone(resp);
 			return;
 		}
+		// 登録状態の更新は非同期で開始し、送信結果の記録と並行して行います。
+		Future<Void> registryUpdate = null;
+		long receivedMillis = System.currentTimeMillis();
 		if (result.getMessageId() != null) {// メッセージが正常に作成されると、getMessageId（）は、メッセージIDを返します。
-			logger.info("Succesfully sent message to device " + regId);
+			log.log(Level.FINE, "sent", "regId", regId);
+			tracker.record(DeliveryTracker.STAGE_DELIVERY,
+					receivedMillis - event.getCreated());
 			String canonicalRegId = result.getCanonicalRegistrationId();
 			if (canonicalRegId != null) {
 				// same device has more than on registration id: update it
@@ -181,49 +202,161 @@ public class SendMessageServlet extends BaseServlet {
 				// GCMサーバーに同じデバイスで複数のRegistration ID（以下regId）が割り振られる場合があり、
 				// その場合にcanonicalRegIdが取得できる状況となります。
 				// その場合には、データストアを更新します。
-				logger.finest("canonicalRegId " + canonicalRegId);
-				Datastore.updateRegistration(regId, canonicalRegId);
+				log.log(Level.FINEST, "canonicalId", "regId", regId, "canonicalRegId",
+						canonicalRegId);
+				registryUpdate = AsyncDatastore.updateRegistration(regId, canonicalRegId);
 			}
 		} else {// メッセージが正常に作成されないと、getMessageId()は、Nullを返します。
 			String error = result.getErrorCodeName();
 			if (error.equals(Constants.ERROR_NOT_REGISTERED)) {
 				// application has been removed from device - unregister it
-				Datastore.unregister(regId);
+				registryUpdate = AsyncDatastore.unregister(regId);
+			} else if (error.equals(Constants.ERROR_UNAVAILABLE)) {
+				RetryBatch retry = new RetryBatch();
+				retry.add(regId, attempts + 1);
+				scheduleRetry(event, retry);
 			} else {
-				logger.severe("Error sending message to device " + regId + ": "
-						+ error);
+				log.log(Level.SEVERE, "sendFailed", "regId", regId, "error", error);
 			}
 		}
+		tracker.record(DeliveryTracker.STAGE_SEND, receivedMillis - startMillis);
+		if (registryUpdate != null) {
+			AsyncDatastore.getUnchecked(registryUpdate);
+		}
+		taskDone(resp);
 	}
 
-	// 全端末にメッセージを送信する場合の処理
-	private void sendMulticastMessage(String multicastKey,
-			HttpServletResponse resp) {
+	// リトライするためにMulticastエンティティに保存された端末にメッセージを送信する場合の処理
+	// 再送が必要な端末だけを新しいタスクとして登録するため、このタスク自体は常に完了として扱います。
+	private void sendMulticastMessage(ChangeEvent event, String multicastKey,
+			Future<Datastore.PendingMulticast> pendingFuture, DeliveryTracker tracker,
+			long startMillis, HttpServletResponse resp) {
 		// Recover registration ids from datastore
-		List<String> regIds = Datastore.getMulticast(multicastKey);// データストアからレジストレーションIDを取得します。？
-
-		//		Message message = new Message.Builder().build();
+		Datastore.PendingMulticast pending = AsyncDatastore.getUnchecked(pendingFuture);
+		if (pending != null && !pending.getDevices().isEmpty()) {
+			sendToDevices(event, pending.getDevices(), pending.getAttempts(), tracker,
+					startMillis);
+		}
+		multicastDone(resp, multicastKey);
+	}
 
-		Message.Builder builder = new Message.Builder();
-		builder.addData("INDEX", String.valueOf(updateIndex.size())); // 更新された件数です。
-		for (int i = 0; i < updateIndex.size(); i++) {
+	// キーの範囲で指定された複数端末にメッセージを送信する場合の処理
+	// 送信先はMulticastエンティティを使わずにDeviceから直接読み込み、リトライが必要な端末だけを保存します。
+	private void sendRangeMessage(ChangeEvent event,
+			Future<List<String>> rangeRegIds, DeliveryTracker tracker,
+			long startMillis, HttpServletResponse resp) {
+		List<String> regIds = AsyncDatastore.getUnchecked(rangeRegIds);
+		if (!regIds.isEmpty()) {
+			sendToDevices(event, regIds,
+					Collections.<Integer> nCopies(regIds.size(), 0), tracker,
+					startMillis);
+		}
+		taskDone(resp);
+	}
 
-			builder.addData("URL" + (i + 1), URL.get(updateIndex.get(i)));
-			builder.addData("SUBJECT" + (i + 1), SUBJECT.get(updateIndex.get(i)));
+	// GCMの上限(1000件)ごとに分けて、最大sendConcurrency件のリクエストを同時に送信します。
+	// 送信に失敗した端末は、送信を試みた回数を1増やして再送するタスクを登録します。
+	private void sendToDevices(ChangeEvent event, List<String> regIds,
+			List<Integer> attempts, DeliveryTracker tracker, long startMillis) {
+		// 変更内容ごとに一度だけ作成・エンコードされたメッセージを送信します。
+		BroadcastPayload payload = BroadcastPayload.forEvent(event);
+
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		for (int from = 0; from < regIds.size(); from += Datastore.MULTICAST_SIZE) {
+			chunks.add(regIds.subList(from,
+					Math.min(from + Datastore.MULTICAST_SIZE, regIds.size())));
+		}
+		List<MulticastResponse> responses;
+		try {
+			responses = SenderRegistry.get().sendNoRetry(payload, chunks,
+					sendConcurrency);
+		} catch (IOException e) {
+			// 送信できなかった場合は、全ての端末を送信を試みた回数を1増やして再送します。
+			Metrics.increment("gcm.errors");
+			log.log(Level.SEVERE, e, "postFailed", "devices", regIds.size());
+			RetryBatch retry = new RetryBatch();
+			for (int i = 0; i < regIds.size(); i++) {
+				retry.add(regIds.get(i), attempts.get(i) + 1);
+			}
+			scheduleRetry(event, retry);
+			return;
+		}
 
+		RetryBatch retry = new RetryBatch();
+		// レジストレーションIDの更新と登録解除は送信中に反映せず、まとめて別のタスクで反映します。
+		RegistryChanges changes = new RegistryChanges();
+		for (int i = 0; i < chunks.size(); i++) {
+			List<String> chunk = chunks.get(i);
+			int offset = i * Datastore.MULTICAST_SIZE;
+			MulticastResponse response = responses.get(i);
+			retry.retryAfter(response.getRetryAfterMillis());
+			tracker.record(DeliveryTracker.STAGE_SEND,
+					response.getReceivedMillis() - startMillis);
+			if (response.getResult() == null) {
+				if (response.isRetriable()) {// リクエスト全体が失敗した場合は、全ての端末を再送します。
+					for (int j = 0; j < chunk.size(); j++) {
+						retry.add(chunk.get(j), attempts.get(offset + j) + 1);
+					}
+				}
+				continue;
+			}
+			// GCMが受け付けた端末の数だけ、検出からの経過時間を記録します。
+			tracker.record(DeliveryTracker.STAGE_DELIVERY,
+					response.getReceivedMillis() - event.getCreated(),
+					response.getResult().getSuccess());
+			for (int j : processResults(chunk, response.getResult(), changes)) {
+				retry.add(chunk.get(j), attempts.get(offset + j) + 1);
+			}
 		}
+		// 再送する端末の保存と、レジストレーションIDの変更のタスクの登録を並行して行います。
+		Future<String> multicastKey = storeRetry(retry);
+		changes.flush();
+		queueRetry(event, retry, multicastKey);
+	}
 
-		Message message = builder.build();
+	// 再送が必要な端末をMulticastエンティティに保存し、待ち時間を指定してタスクを登録します。
+	private void scheduleRetry(ChangeEvent event, RetryBatch retry) {
+		queueRetry(event, retry, storeRetry(retry));
+	}
 
-		MulticastResult multicastResult;
-		try {
-			multicastResult = sender.sendNoRetry(message, regIds);
-		} catch (IOException e) {
-			logger.log(Level.SEVERE, "Exception posting " + message, e);
-			multicastDone(resp, multicastKey);
+	// 送信を試みた回数が上限に達した端末を除き、残りの端末をMulticastエンティティに非同期で保存します。
+	// 再送する端末がない場合はnullを返します。
+	private Future<String> storeRetry(RetryBatch retry) {
+		int dropped = retry.prune();
+		if (dropped > 0) {
+			log.log(Level.SEVERE, "givingUp", "devices", dropped, "attempts",
+					RetryPolicy.MAX_ATTEMPTS);
+		}
+		if (retry.regIds.isEmpty()) {
+			return null;
+		}
+		return AsyncDatastore.createMulticast(retry.regIds, retry.attempts);
+	}
+
+	// 保存したMulticastエンティティを再送するタスクを、待ち時間を指定して登録します。
+	private void queueRetry(ChangeEvent event, RetryBatch retry,
+			Future<String> multicastKey) {
+		if (multicastKey == null) {
 			return;
 		}
-		boolean allDone = true;
+		long delay = RetryPolicy.delayMillis(retry.minAttempts(),
+				retry.retryAfterMillis);
+		QueueFactory.getQueue("gcm").add(TaskOptions.Builder
+				.withUrl("/send")
+				.param(PARAMETER_MULTICAST, AsyncDatastore.getUnchecked(multicastKey))
+				.param(PARAMETER_EVENT, event.getKey())
+				.param(PARAMETER_QUEUED_AT,
+						String.valueOf(System.currentTimeMillis() + delay))
+				.countdownMillis(delay).method(Method.POST));
+		log.log(Level.INFO, "retry", "devices", retry.regIds.size(), "delayMillis",
+				delay);
+	}
+
+	// 送信結果を確認し、レジストレーションIDの更新と登録解除をchangesに追加します。
+	// リトライするべきレジストレーションIDのインデックスのリストを返します。
+	private List<Integer> processResults(List<String> regIds,
+			MulticastResult multicastResult, RegistryChanges changes) {
+		List<Integer> retriable = new ArrayList<Integer>();
 		// check if any registration id must be updated
 		if (multicastResult.getCanonicalIds() != 0) {// 送信に成功したレジストレーションIDの数を取得します。
 			List<Result> results = multicastResult.getResults();// 個々の送信結果をリスト形式で返します。
@@ -232,14 +365,13 @@ public class SendMessageServlet extends BaseServlet {
 						.getCanonicalRegistrationId();// 更新する必要があるIDがあれば返します。
 				if (canonicalRegId != null) {
 					String regId = regIds.get(i);
-					Datastore.updateRegistration(regId, canonicalRegId);
+					changes.update(regId, canonicalRegId);
 				}
 			}
 		}
 		if (multicastResult.getFailure() != 0) {// 送信が失敗していたケースが存在する場合の処理です。
 			// there were failures, check if any could be retried
 			List<Result> results = multicastResult.getResults();
-			List<String> retriableRegIds = new ArrayList<String>();
 
 			int error_count = 0;
 			for (int i = 0; i < results.size(); i++) {
@@ -247,31 +379,21 @@ public class SendMessageServlet extends BaseServlet {
 				if (error != null) {
 					error_count++;
 					String regId = regIds.get(i);
-					logger.warning("Got error (" + error + ") for regId " + regId);
+					log.log(RESULT_ERRORS, Level.WARNING, "resultError", "error", error,
+							"regId", regId);
 					if (error.equals(Constants.ERROR_NOT_REGISTERED)) {// NotRegistered
 						// application has been removed from device - unregister
 						// it
-						Datastore.unregister(regId);
+						changes.unregister(regId);
 					}
 					if (error.equals(Constants.ERROR_UNAVAILABLE)) {// Unavailable
-						retriableRegIds.add(regId);
+						retriable.add(i);
 					}
 				}
 			}
-			logger.warning("送信エラー >>" + error_count + "回");
-
-			if (!retriableRegIds.isEmpty()) {// リトライするべきIDが存在した場合の処理です。
-				// update task
-				Datastore.updateMulticast(multicastKey, retriableRegIds);
-				allDone = false;
-				retryTask(resp);
-			}
-		}
-		if (allDone) {
-			multicastDone(resp, multicastKey);
-		} else {
-			retryTask(resp);
+			log.log(Level.WARNING, "resultErrors", "count", error_count);
 		}
+		return retriable;
 	}
 
 	private void multicastDone(HttpServletResponse resp, String encodedKey) {
@@ -279,4 +401,48 @@ public class SendMessageServlet extends BaseServlet {
 		taskDone(resp);
 	}
 
+	// 再送が必要な端末と、それぞれの送信を試みた回数です。
+	private static final class RetryBatch {
+
+		final List<String> regIds = new ArrayList<String>();
+		final List<Integer> attempts = new ArrayList<Integer>();
+		long retryAfterMillis;
+
+		void add(String regId, int attempt) {
+			regIds.add(regId);
+			attempts.add(attempt);
+		}
+
+		// GCMからRetry-Afterで指定された最も長い待ち時間を保持します。
+		void retryAfter(long millis) {
+			retryAfterMillis = Math.max(retryAfterMillis, millis);
+		}
+
+		// 送信を試みた回数が上限に達した端末を取り除き、その件数を返します。
+		int prune() {
+			List<String> keptRegIds = new ArrayList<String>(regIds.size());
+			List<Integer> keptAttempts = new ArrayList<Integer>(attempts.size());
+			for (int i = 0; i < regIds.size(); i++) {
+				if (RetryPolicy.canRetry(attempts.get(i))) {
+					keptRegIds.add(regIds.get(i));
+					keptAttempts.add(attempts.get(i));
+				}
+			}
+			int dropped = regIds.size() - keptRegIds.size();
+			regIds.clear();
+			regIds.addAll(keptRegIds);
+			attempts.clear();
+			attempts.addAll(keptAttempts);
+			return dropped;
+		}
+
+		int minAttempts() {
+			int min = Integer.MAX_VALUE;
+			for (int attempt : attempts) {
+				min = Math.min(min, attempt);
+			}
+			return min;
+		}
+	}
+
 }
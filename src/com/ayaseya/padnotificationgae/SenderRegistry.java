@@ -0,0 +1,126 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.Sender;
+
+/**
+ * Process-wide {@link Sender} that follows changes of the API key without
+ * restarting the instance.
+ * <p>
+ * A hash of the key stored in the {@code Settings} entity is published in
+ * memcache with a short expiration. Each instance compares it with the key of
+ * its current sender every few seconds; when the stamp changed or expired, the
+ * entity is read again and, if the key differs, a new sender is swapped in
+ * atomically. Requests already holding the previous sender finish with it.
+ */
+// APIキーを変更した際に、インスタンスを再起動せずに新しいキーで送信するためのクラスです。
+// memcacheに保存したAPIキーのハッシュ値(バージョン)を定期的に確認し、変わっていた場合だけデータストアから読み直します。
+final class SenderRegistry {
+
+	// 各インスタンスがmemcacheのバージョンを確認する間隔(ミリ秒)です。
+	private static final long CHECK_INTERVAL_MILLIS = 10 * 1000;
+
+	private static final Logger logger = Logger.getLogger(SenderRegistry.class.getName());
+
+	private static final AtomicReference<Registration> current = new AtomicReference<Registration>();
+	private static final AtomicLong nextCheckMillis = new AtomicLong();
+	private static volatile String endpoint = Constants.GCM_SEND_ENDPOINT;
+
+	private SenderRegistry() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Sets the URL multicasts are posted to, e.g. a local stand-in of the GCM
+	 * server. {@code null} restores the GCM endpoint.
+	 */
+	static void setEndpoint(String url) {
+		endpoint = url != null ? url : Constants.GCM_SEND_ENDPOINT;
+	}
+
+	/**
+	 * Gets the API key of the current sender, or {@code null} before the first
+	 * sender is created.
+	 */
+	static String getKey() {
+		Registration registration = current.get();
+		return registration != null ? registration.key : null;
+	}
+
+	/**
+	 * Gets the sender for the current API key. Callers should use the returned
+	 * instance for a whole request rather than keep it.
+	 */
+	static PayloadSender get() {
+		Registration registration = current.get();
+		if (registration == null) {
+			return swap(null, ApiKeyInitializer.getApiKey());
+		}
+		if (!registration.endpoint.equals(endpoint)) {
+			return swap(registration, registration.key);
+		}
+		long now = System.currentTimeMillis();
+		long next = nextCheckMillis.get();
+		// 確認する時刻になった場合も、確認するのは1つのスレッドだけです。
+		if (now >= next && nextCheckMillis.compareAndSet(next, now + CHECK_INTERVAL_MILLIS)) {
+			try {
+				return refresh(registration);
+			} catch (RuntimeException e) {
+				// APIキーを確認できなかった場合は、現在のSenderで送信を続けます。
+				logger.log(Level.WARNING, "Could not check the API key", e);
+			}
+		}
+		return registration.sender;
+	}
+
+	// memcacheのバージョンと比較し、変わっているか期限が切れている場合はデータストアからAPIキーを読み直します。
+	private static PayloadSender refresh(Registration registration) {
+		String version = ApiKeyInitializer.getCachedVersion();
+		if (registration.version.equals(version)) {
+			return registration.sender;
+		}
+		// 読み直す際に、新しいバージョンがmemcacheに保存されます。
+		String key = ApiKeyInitializer.loadApiKey();
+		if (key == null) {
+			throw new IllegalStateException("API key is not set");
+		}
+		if (registration.key.equals(key)) {
+			return registration.sender;
+		}
+		logger.info("API key changed to version " + ApiKeyInitializer.versionOf(key));
+		return swap(registration, key);
+	}
+
+	// 新しいSenderに差し替えます。他のスレッドが先に差し替えた場合はそちらを使用します。
+	private static PayloadSender swap(Registration expected, String key) {
+		if (key == null) {
+			throw new IllegalStateException("API key is not set");
+		}
+		Registration updated = new Registration(key, endpoint);
+		if (current.compareAndSet(expected, updated)) {
+			return updated.sender;
+		}
+		return current.get().sender;
+	}
+
+	private static final class Registration {
+
+		final String key;
+		final String version;
+		final String endpoint;
+		final PayloadSender sender;
+
+		Registration(String key, String endpoint) {
+			this.key = key;
+			this.version = ApiKeyInitializer.versionOf(key);
+			this.endpoint = endpoint;
+			this.sender = new PayloadSender(key, endpoint);
+		}
+	}
+
+}
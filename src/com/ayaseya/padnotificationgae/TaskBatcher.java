@@ -0,0 +1,101 @@
+package com.ayaseya.padnotificationgae;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueConstants;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Collects tasks and adds them to a queue in batches.
+ * <p>
+ * Each full batch is submitted asynchronously with the bulk add API, so a
+ * fan-out of many tasks costs one RPC per {@link QueueConstants#maxTasksPerAdd()}
+ * tasks. {@link #flush()} must be called to submit the remaining tasks and to
+ * wait for all of them.
+ * <p>
+ * Tasks should be named from their content: when a batch fails the caller is
+ * retried and adds the same tasks again, and the ones already added are then
+ * rejected with {@link TaskAlreadyExistsException}, which counts as success.
+ */
+// タスクをまとめてタスクキューに登録するクラスです。
+// queue.add()を1件ずつ呼び出すとタスクごとにRPCが発生するため、上限件数(100件)ごとにまとめて非同期に登録します。
+final class TaskBatcher {
+
+	private final Queue queue;
+	private final int batchSize;
+	private final List<TaskOptions> pending;
+	private final List<Future<List<TaskHandle>>> submitted = new ArrayList<Future<List<TaskHandle>>>();
+	private int count;
+
+	TaskBatcher(Queue queue) {
+		this(queue, QueueConstants.maxTasksPerAdd());
+	}
+
+	TaskBatcher(Queue queue, int batchSize) {
+		this.queue = queue;
+		this.batchSize = Math.min(batchSize, QueueConstants.maxTasksPerAdd());
+		this.pending = new ArrayList<TaskOptions>(this.batchSize);
+	}
+
+	/**
+	 * Adds a task, submitting the current batch if it is full.
+	 */
+	void add(TaskOptions task) {
+		pending.add(task);
+		count++;
+		if (pending.size() >= batchSize) {
+			submit();
+		}
+	}
+
+	/**
+	 * Submits the remaining tasks and waits until every batch was added.
+	 *
+	 * @return number of tasks added since this batcher was created.
+	 */
+	int flush() {
+		if (!pending.isEmpty()) {
+			submit();
+		}
+		try {
+			for (Future<List<TaskHandle>> future : submitted) {
+				await(future);
+			}
+		} finally {
+			submitted.clear();
+		}
+		return count;
+	}
+
+	private void await(Future<List<TaskHandle>> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while adding tasks", e);
+		} catch (ExecutionException e) {
+			// 同じ名前のタスクが登録済みの場合は、リトライ前のリクエストで登録されています。
+			// (バッチ内の他のタスクは登録されます)
+			if (e.getCause() instanceof TaskAlreadyExistsException) {
+				return;
+			}
+			// タスクの登録に失敗した場合は、呼び出し元のタスクがリトライされるように例外を投げます。
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Could not add tasks", e.getCause());
+		}
+	}
+
+	private void submit() {
+		submitted.add(queue.addAsync(new ArrayList<TaskOptions>(pending)));
+		pending.clear();
+	}
+
+}
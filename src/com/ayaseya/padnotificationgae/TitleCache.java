@@ -0,0 +1,244 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import net.sf.jsr107cache.Cache;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+
+/**
+ * Cache of announcement titles keyed by the normalized URL of their page.
+ * <p>
+ * Lookups go through an in-process LRU map, then memcache and finally the
+ * datastore. Entries older than {@link #TTL_MILLIS}, or stored for a link
+ * whose markup on the index page has changed since, are treated as missing so
+ * the page is fetched again.
+ */
+// 告知ページのURLとタイトルの対応を保存するキャッシュです。
+// 前回までに取得済みのURLはネットワークに接続せずにタイトルを返せるようにします。
+final class TitleCache {
+
+	private static final String ENTITY_KIND = "Title";
+	private static final String TITLE_PROPERTY = "Title";
+	private static final String FETCHED_PROPERTY = "Fetched";
+	private static final String FRAGMENT_PROPERTY = "Fragment";
+
+	// データストアに保存したタイトルの有効期間(7日)です。過ぎたものは再取得します。
+	static final long TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 24 * 60 * 60;
+	// インスタンス内に保持する件数の上限です。超えた場合は最も古く参照されたものから破棄します。
+	private static final int LOCAL_CAPACITY = 256;
+	// キー名の上限(500バイト)を超えるURLはキャッシュしません。
+	private static final int MAX_KEY_LENGTH = 500;
+	private static final int PURGE_BATCH_SIZE = 500;
+
+	private static final Logger logger = Logger.getLogger(TitleCache.class.getName());
+
+	private static final DatastoreService datastore = InstrumentedDatastore.getDatastoreService();
+
+	private static final Cache memcache = CacheUtilities.createCache(ENTITY_KIND,
+			MEMCACHE_EXPIRATION_SECONDS);
+
+	@SuppressWarnings("serial")
+	private static final Map<String, CachedTitle> local = Collections
+			.synchronizedMap(new LinkedHashMap<String, CachedTitle>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedTitle> eldest) {
+					return size() > LOCAL_CAPACITY;
+				}
+			});
+
+	private TitleCache() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Gets the cached titles of the given pages.
+	 *
+	 * @param fragmentHashes
+	 *            hashes of the links to the pages on the index page, keyed by
+	 *            URL; entries stored for another hash are not returned.
+	 * @return titles keyed by the URLs passed in; pages without a valid entry
+	 *         are not included.
+	 */
+	static Map<String, String> getAll(List<String> urls, Map<String, String> fragmentHashes) {
+		Map<String, String> titles = new HashMap<String, String>();
+		Map<String, String> misses = new HashMap<String, String>();// 正規化したURL → 元のURL
+		long now = System.currentTimeMillis();
+
+		for (String url : urls) {
+			String normalized = normalize(url);
+			if (normalized.length() > MAX_KEY_LENGTH) {
+				continue;
+			}
+			CachedTitle cached = local.get(normalized);
+			if (cached == null) {
+				cached = (CachedTitle) memcache.get(normalized);
+				if (cached != null) {
+					local.put(normalized, cached);
+				}
+			}
+			if (cached != null && cached.isValid(now, fragmentHashes.get(url))) {
+				titles.put(url, cached.title);
+			} else {
+				misses.put(normalized, url);
+			}
+		}
+		if (misses.isEmpty()) {
+			return titles;
+		}
+
+		// キャッシュに存在しなかったものはデータストアからまとめて取得します。
+		List<Key> keys = new ArrayList<Key>(misses.size());
+		for (String normalized : misses.keySet()) {
+			keys.add(KeyFactory.createKey(ENTITY_KIND, normalized));
+		}
+		Map<Key, Entity> entities = datastore.get(keys);
+		for (Entity entity : entities.values()) {
+			CachedTitle cached = new CachedTitle(
+					(String) entity.getProperty(TITLE_PROPERTY),
+					((Date) entity.getProperty(FETCHED_PROPERTY)).getTime(),
+					(String) entity.getProperty(FRAGMENT_PROPERTY));
+			String normalized = entity.getKey().getName();
+			if (!cached.isValid(now, fragmentHashes.get(misses.get(normalized)))) {
+				continue;
+			}
+			local.put(normalized, cached);
+			memcache.put(normalized, cached);
+			titles.put(misses.get(normalized), cached.title);
+		}
+		logger.fine("Title cache: " + titles.size() + " hits, "
+				+ (urls.size() - titles.size()) + " misses");
+		return titles;
+	}
+
+	/**
+	 * Stores freshly fetched titles.
+	 *
+	 * @param titles
+	 *            titles keyed by the URL of their page.
+	 * @param fragmentHashes
+	 *            hashes of the links to the pages on the index page, keyed by
+	 *            URL.
+	 */
+	static void putAll(Map<String, String> titles, Map<String, String> fragmentHashes) {
+		if (titles.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		List<Entity> entities = new ArrayList<Entity>(titles.size());
+		for (Map.Entry<String, String> entry : titles.entrySet()) {
+			String normalized = normalize(entry.getKey());
+			if (normalized.length() > MAX_KEY_LENGTH) {
+				continue;
+			}
+			String fragmentHash = fragmentHashes.get(entry.getKey());
+			CachedTitle cached = new CachedTitle(entry.getValue(), now, fragmentHash);
+			local.put(normalized, cached);
+			memcache.put(normalized, cached);
+
+			Entity entity = new Entity(ENTITY_KIND, normalized);
+			entity.setUnindexedProperty(TITLE_PROPERTY, entry.getValue());
+			entity.setUnindexedProperty(FRAGMENT_PROPERTY, fragmentHash);
+			entity.setProperty(FETCHED_PROPERTY, new Date(now));// 期限切れの削除に使用するためインデックスを作成します。
+			entities.add(entity);
+		}
+		datastore.put(entities);
+	}
+
+	/**
+	 * Deletes titles that have not been refreshed within {@link #TTL_MILLIS}.
+	 * Pages that are still linked are refreshed when they expire, so anything
+	 * older is no longer referenced from the index page.
+	 */
+	static void purgeExpired() {
+		Date expired = new Date(System.currentTimeMillis() - TTL_MILLIS);
+		Query query = new Query(ENTITY_KIND).addFilter(FETCHED_PROPERTY,
+				FilterOperator.LESS_THAN, expired).setKeysOnly();
+		List<Key> keys = new ArrayList<Key>();
+		for (Entity entity : datastore.prepare(query).asList(
+				FetchOptions.Builder.withLimit(PURGE_BATCH_SIZE))) {
+			keys.add(entity.getKey());
+		}
+		if (!keys.isEmpty()) {
+			datastore.delete(keys);
+			logger.info("Purged " + keys.size() + " expired titles");
+		}
+	}
+
+	/**
+	 * Normalizes a URL so that trivially different spellings share an entry.
+	 */
+	// スキームとホスト名を小文字にし、既定のポート番号とフラグメント(#以降)を取り除きます。
+	static String normalize(String url) {
+		String trimmed = url.trim();
+		try {
+			URI uri = new URI(trimmed);
+			if (uri.getScheme() == null || uri.getHost() == null) {
+				return trimmed;
+			}
+			String scheme = uri.getScheme().toLowerCase();
+			int port = uri.getPort();
+			if ((port == 80 && scheme.equals("http"))
+					|| (port == 443 && scheme.equals("https"))) {
+				port = -1;
+			}
+			String path = uri.getRawPath();
+			if (path == null || path.length() == 0) {
+				path = "/";
+			}
+			StringBuilder normalized = new StringBuilder();
+			normalized.append(scheme).append("://")
+					.append(uri.getHost().toLowerCase());
+			if (port != -1) {
+				normalized.append(':').append(port);
+			}
+			normalized.append(path);
+			if (uri.getRawQuery() != null) {
+				normalized.append('?').append(uri.getRawQuery());
+			}
+			return normalized.toString();
+		} catch (URISyntaxException e) {
+			return trimmed;
+		}
+	}
+
+	// memcacheとインスタンス内のキャッシュに保存する値です。
+	@SuppressWarnings("serial")
+	private static final class CachedTitle implements Serializable {
+
+		final String title;
+		final long fetched;
+		final String fragmentHash;
+
+		CachedTitle(String title, long fetched, String fragmentHash) {
+			this.title = title;
+			this.fetched = fetched;
+			this.fragmentHash = fragmentHash;
+		}
+
+		// 有効期間内で、一覧のリンク部分のHTMLが取得した時から変わっていない場合に有効です。
+		// (リンク部分のHTMLを保存していなかった古いエントリーは一度だけ取得し直されます)
+		boolean isValid(long now, String currentFragmentHash) {
+			return now - fetched < TTL_MILLIS
+					&& (currentFragmentHash == null || currentFragmentHash.equals(fragmentHash));
+		}
+	}
+
+}
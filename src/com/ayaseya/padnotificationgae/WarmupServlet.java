@@ -0,0 +1,123 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jsoup.Jsoup;
+
+import com.google.appengine.api.datastore.EntityNotFoundException;
+
+/**
+ * Servlet that prepares a new instance before it receives user requests.
+ * <p>
+ * App Engine calls {@code /_ah/warmup} when it starts an instance ahead of
+ * traffic (the {@code warmup} inbound service must be enabled). Each step is
+ * timed and a failing step does not prevent the following ones. The sender
+ * step primes the version stamp of the API key in memcache (never the key
+ * itself) and builds the same sender the send path uses, since the endpoint
+ * is configured by {@link ApiKeyInitializer} before any servlet runs.
+ */
+// インスタンスの起動時にApp Engineから呼び出され、最初のリクエストで発生する初期化の処理を事前に行うサーブレットです。
+// クラスの読み込みやmemcacheへの保存(APIキーはバージョンのみ)を済ませておき、端末の登録やcronのリクエストが遅くならないようにします。
+@SuppressWarnings("serial")
+public class WarmupServlet extends BaseServlet {
+
+	// パースの処理を一度実行しておくための、GCMのレスポンスの例です。
+	private static final String SAMPLE_MULTICAST_RESPONSE = "{\"multicast_id\":1,"
+			+ "\"success\":1,\"failure\":0,\"canonical_ids\":0,"
+			+ "\"results\":[{\"message_id\":\"0:1\"}]}";
+
+	private static final String SAMPLE_HTML = "<html><body><ul>"
+			+ "<li><a href=\"/member/index.html\">warmup</a></li></ul></body></html>";
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		Map<String, Long> timings = new LinkedHashMap<String, Long>();
+		long start = System.currentTimeMillis();
+
+		// APIキーのバージョンをmemcacheに保存してSenderを作成し、GCMとURL Fetchのクラスを読み込みます。
+		// 送信先(gcmEndpoint)はApiKeyInitializerがサーブレットより先に設定しているため、送信時と同じSenderになります。
+		run("sender", timings, new Runnable() {
+			@Override
+			public void run() {
+				if (ApiKeyInitializer.getCachedVersion() == null) {
+					ApiKeyInitializer.loadApiKey();
+				}
+				SenderRegistry.get();
+			}
+		});
+		// デバイス数をmemcacheに保存します。
+		run("deviceCount", timings, new Runnable() {
+			@Override
+			public void run() {
+				Datastore.getTotalDevices();
+			}
+		});
+		// 前回取得した告知の一覧と検証子をmemcacheに保存します。
+		run("snapshot", timings, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ScheduleJsoupTask.loadSnapshot();
+				} catch (EntityNotFoundException e) {
+					// 初回起動時は保存されていません。
+				}
+				PageFingerprint.load();
+			}
+		});
+		// 最新の変更内容を取得し、データストアのクエリの処理を一度実行します。
+		run("changeEvent", timings, new Runnable() {
+			@Override
+			public void run() {
+				ChangeEvent.loadLatest();
+			}
+		});
+		// JSONとHTMLのパーサーを一度実行し、クラスを読み込んでおきます。
+		run("parsers", timings, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					PayloadSender.parseMulticastResult(SAMPLE_MULTICAST_RESPONSE);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				Jsoup.parse(SAMPLE_HTML).select("a[href]").attr("href");
+			}
+		});
+
+		long total = System.currentTimeMillis() - start;
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, Long> entry : timings.entrySet()) {
+			report.append(entry.getKey()).append(": ").append(entry.getValue())
+					.append(" ms\n");
+		}
+		report.append("total: ").append(total).append(" ms\n");
+		logger.info("Warmup finished in " + total + " ms\n" + report);
+
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/plain");
+		PrintWriter writer = resp.getWriter();
+		writer.print(report);
+		writer.flush();
+	}
+
+	// 1つの処理を実行して所要時間(ミリ秒)を記録します。失敗した場合は-1を記録し、次の処理を続けます。
+	private void run(String step, Map<String, Long> timings, Runnable task) {
+		long start = System.currentTimeMillis();
+		try {
+			task.run();
+			timings.put(step, System.currentTimeMillis() - start);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Warmup step " + step + " failed", e);
+			timings.put(step, -1L);
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.ayaseya.padnotificationgae;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test comparing {@code /register} with {@code /admin/registerAll} on a
+ * running development server.
+ * <p>
+ * Usage: {@code BulkRegistrationLoadTest [baseUrl] [devices] [threads]},
+ * defaults {@code http://localhost:8888 2000 8}. Every run uses fresh
+ * registration ids and removes them again through
+ * {@code /admin/unregisterAll}.
+ */
+// 開発サーバーに対して、1件ずつの登録とまとめて登録する場合のスループットを比較する負荷試験です。
+// /admin以下は管理者のログインが必要なため、開発サーバーのログインCookieを付けて送信します。
+public class BulkRegistrationLoadTest {
+
+	private static final String ADMIN_COOKIE = "dev_appserver_login=\"test@example.com:true:18580476422013912411\"";
+
+	private static final int BULK_BATCH_SIZE = 10000;
+
+	public static void main(String[] args) throws Exception {
+		String baseUrl = args.length > 0 ? args[0] : "http://localhost:8888";
+		int devices = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		String run = Long.toString(System.currentTimeMillis(), 36);
+		List<String> single = regIds("single-" + run, devices);
+		List<String> bulk = regIds("bulk-" + run, devices);
+
+		long singleMillis = registerOneByOne(baseUrl, single, threads);
+		long bulkMillis = registerInBulk(baseUrl, bulk);
+
+		report("/register (" + threads + " threads)", devices, singleMillis);
+		report("/admin/registerAll", devices, bulkMillis);
+		System.out.printf("speedup: %.1fx%n", (double) singleMillis / Math.max(1, bulkMillis));
+
+		post(baseUrl + "/admin/unregisterAll", join(single), true);
+		post(baseUrl + "/admin/unregisterAll", join(bulk), true);
+	}
+
+	private static long registerOneByOne(final String baseUrl, List<String> regIds,
+			int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			long start = System.nanoTime();
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(regIds.size());
+			for (final String regId : regIds) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						post(baseUrl + "/register?regId=" + URLEncoder.encode(regId, "UTF-8"),
+								"", false);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			return (System.nanoTime() - start) / 1000000;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static long registerInBulk(String baseUrl, List<String> regIds)
+			throws IOException {
+		long start = System.nanoTime();
+		for (int from = 0; from < regIds.size(); from += BULK_BATCH_SIZE) {
+			post(baseUrl + "/admin/registerAll",
+					join(regIds.subList(from, Math.min(from + BULK_BATCH_SIZE, regIds.size()))),
+					true);
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static void post(String url, String body, boolean admin) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+		if (admin) {
+			connection.setRequestProperty("Cookie", ADMIN_COOKIE);
+		}
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		int status = connection.getResponseCode();
+		if (status != HttpURLConnection.HTTP_OK) {
+			throw new IOException(url + " returned " + status);
+		}
+		InputStream in = connection.getInputStream();
+		try {
+			byte[] buffer = new byte[4096];
+			while (in.read(buffer) != -1) {
+				// 接続を再利用できるよう、レスポンスを最後まで読み込みます。
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static List<String> regIds(String prefix, int count) {
+		List<String> regIds = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			regIds.add("load-test-" + prefix + "-" + i);
+		}
+		return regIds;
+	}
+
+	private static String join(List<String> regIds) {
+		StringBuilder body = new StringBuilder();
+		for (String regId : regIds) {
+			body.append(regId).append('\n');
+		}
+		return body.toString();
+	}
+
+	private static void report(String endpoint, int devices, long millis) {
+		System.out.printf("%-32s %6d devices in %6d ms (%.0f/s)%n", endpoint, devices,
+				millis, devices * 1000.0 / Math.max(1, millis));
+	}
+
+}
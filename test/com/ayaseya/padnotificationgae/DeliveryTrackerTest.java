@@ -0,0 +1,65 @@
+package com.ayaseya.padnotificationgae;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests of the histogram of {@link DeliveryTracker}.
+ */
+public class DeliveryTrackerTest {
+
+	@Test
+	public void emptyHistogramReportsZero() {
+		assertEquals(0, DeliveryTracker.percentile(histogram(), 0, 0.5));
+	}
+
+	@Test
+	public void reportsTheUpperBoundOfTheBucket() {
+		long[] buckets = histogram(150);
+
+		assertEquals(200, DeliveryTracker.percentile(buckets, 1, 0.5));
+		assertEquals(200, DeliveryTracker.percentile(buckets, 1, 1.0));
+	}
+
+	@Test
+	public void boundsBelongToTheLowerBucket() {
+		assertEquals(DeliveryTracker.bucket(100), DeliveryTracker.bucket(0));
+		assertEquals(DeliveryTracker.bucket(100) + 1, DeliveryTracker.bucket(101));
+	}
+
+	@Test
+	public void ranksSamplesAcrossBuckets() {
+		// 100ms以下が50件、1秒以下が40件、1分以下が9件、1分を超えるものが1件です。
+		long[] buckets = histogram();
+		add(buckets, 50, 10);
+		add(buckets, 40, 800);
+		add(buckets, 9, 45 * 1000);
+		add(buckets, 1, 90 * 1000);
+
+		assertEquals(100, DeliveryTracker.percentile(buckets, 100, 0.50));
+		assertEquals(1000, DeliveryTracker.percentile(buckets, 100, 0.90));
+		assertEquals(60 * 1000, DeliveryTracker.percentile(buckets, 100, 0.99));
+		assertEquals(2 * 60 * 1000, DeliveryTracker.percentile(buckets, 100, 1.0));
+	}
+
+	@Test
+	public void reportsMinusOneForTheOverflowBucket() {
+		long[] buckets = histogram(10 * 60 * 60 * 1000L);
+
+		assertEquals(-1, DeliveryTracker.percentile(buckets, 1, 0.5));
+	}
+
+	private static long[] histogram(long... samples) {
+		long[] buckets = new long[DeliveryTracker.bucket(Long.MAX_VALUE) + 1];
+		for (long sample : samples) {
+			add(buckets, 1, sample);
+		}
+		return buckets;
+	}
+
+	private static void add(long[] buckets, int count, long millis) {
+		buckets[DeliveryTracker.bucket(millis)] += count;
+	}
+
+}
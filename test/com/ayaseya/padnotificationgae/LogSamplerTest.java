@@ -0,0 +1,74 @@
+package com.ayaseya.padnotificationgae;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link Log.Sampler}.
+ */
+public class LogSamplerTest {
+
+	@Test
+	public void letsThePermitsThroughInOneInterval() {
+		Log.Sampler sampler = Log.sampler(2, Long.MAX_VALUE);
+
+		assertTrue(sampler.acquire());
+		assertTrue(sampler.acquire());
+		assertFalse(sampler.acquire());
+		assertFalse(sampler.acquire());
+	}
+
+	@Test
+	public void countsSuppressedRecordsUntilDrained() {
+		Log.Sampler sampler = Log.sampler(1, Long.MAX_VALUE);
+		sampler.acquire();
+		sampler.acquire();
+		sampler.acquire();
+
+		assertEquals(2, sampler.drainSuppressed());
+		assertEquals(0, sampler.drainSuppressed());
+	}
+
+	@Test
+	public void startsANewIntervalAfterItElapsed() throws InterruptedException {
+		Log.Sampler sampler = Log.sampler(1, 20);
+		assertTrue(sampler.acquire());
+		assertFalse(sampler.acquire());
+
+		Thread.sleep(40);
+
+		assertTrue(sampler.acquire());
+		assertFalse(sampler.acquire());
+	}
+
+	@Test
+	public void neverExceedsThePermitsUnderContention() throws InterruptedException {
+		final Log.Sampler sampler = Log.sampler(100, Long.MAX_VALUE);
+		final int[] acquired = new int[8];
+		Thread[] threads = new Thread[acquired.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int index = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						if (sampler.acquire()) {
+							acquired[index]++;
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		int total = 0;
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+			total += acquired[t];
+		}
+
+		assertEquals(100, total);
+		assertEquals(8 * 1000 - 100, sampler.drainSuppressed());
+	}
+
+}
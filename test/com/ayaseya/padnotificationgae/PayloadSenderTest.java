@@ -0,0 +1,63 @@
+package com.ayaseya.padnotificationgae;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.android.gcm.server.MulticastResult;
+import com.google.android.gcm.server.Result;
+
+/**
+ * Tests of the GCM response parsing of {@link PayloadSender}.
+ */
+public class PayloadSenderTest {
+
+	@Test
+	public void parsesTheResultOfEveryDevice() throws IOException {
+		MulticastResult result = PayloadSender.parseMulticastResult("{"
+				+ "\"multicast_id\":216,\"success\":2,\"failure\":1,\"canonical_ids\":1,"
+				+ "\"results\":[{\"message_id\":\"1:0408\"},"
+				+ "{\"error\":\"Unavailable\"},"
+				+ "{\"message_id\":\"1:2342\",\"registration_id\":\"32\"}]}");
+
+		assertEquals(216, result.getMulticastId());
+		assertEquals(2, result.getSuccess());
+		assertEquals(1, result.getFailure());
+		assertEquals(1, result.getCanonicalIds());
+		List<Result> results = result.getResults();
+		assertEquals(3, results.size());
+		assertEquals("1:0408", results.get(0).getMessageId());
+		assertNull(results.get(0).getErrorCodeName());
+		assertEquals("Unavailable", results.get(1).getErrorCodeName());
+		assertNull(results.get(1).getMessageId());
+		assertEquals("1:2342", results.get(2).getMessageId());
+		assertEquals("32", results.get(2).getCanonicalRegistrationId());
+	}
+
+	@Test
+	public void acceptsAResponseWithoutResults() throws IOException {
+		MulticastResult result = PayloadSender.parseMulticastResult(
+				"{\"multicast_id\":1,\"success\":0,\"failure\":0,\"canonical_ids\":0}");
+
+		assertTrue(result.getResults().isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsInvalidJson() throws IOException {
+		PayloadSender.parseMulticastResult("Error=Unavailable");
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAResponseThatIsNotAnObject() throws IOException {
+		PayloadSender.parseMulticastResult("[1,2]");
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAResponseWithoutCounts() throws IOException {
+		PayloadSender.parseMulticastResult("{\"multicast_id\":1,\"results\":[]}");
+	}
+
+}
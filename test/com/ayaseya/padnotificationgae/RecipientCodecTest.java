@@ -0,0 +1,113 @@
+package com.ayaseya.padnotificationgae;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link RecipientCodec}.
+ */
+public class RecipientCodecTest {
+
+	@Test
+	public void decodesWhatWasEncoded() {
+		List<String> regIds = new ArrayList<String>();
+		List<Integer> attempts = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			regIds.add("APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx" + (i * 7919 % 1000));
+			attempts.add(i % 5);
+		}
+
+		Datastore.PendingMulticast decoded = RecipientCodec.decode(RecipientCodec
+				.encode(regIds, attempts));
+
+		// 送信先の順序は保存されないため、送信先ごとの試行回数で比較します。
+		assertEquals(toMap(regIds, attempts),
+				toMap(decoded.getDevices(), decoded.getAttempts()));
+	}
+
+	@Test
+	public void keepsIdsThatArePrefixesOfEachOther() {
+		List<String> regIds = Arrays.asList("abc", "ab", "abcd", "", "b");
+		List<Integer> attempts = Arrays.asList(1, 2, 3, 4, 300);
+
+		Datastore.PendingMulticast decoded = RecipientCodec.decode(RecipientCodec
+				.encode(regIds, attempts));
+
+		assertEquals(toMap(regIds, attempts),
+				toMap(decoded.getDevices(), decoded.getAttempts()));
+	}
+
+	@Test
+	public void keepsNonAsciiIds() {
+		List<String> regIds = Arrays.asList("端末-1", "端末-2");
+		List<Integer> attempts = Arrays.asList(0, 1);
+
+		Datastore.PendingMulticast decoded = RecipientCodec.decode(RecipientCodec
+				.encode(regIds, attempts));
+
+		assertEquals(toMap(regIds, attempts),
+				toMap(decoded.getDevices(), decoded.getAttempts()));
+	}
+
+	@Test
+	public void encodesAnEmptyList() {
+		Datastore.PendingMulticast decoded = RecipientCodec.decode(RecipientCodec.encode(
+				Collections.<String> emptyList(), Collections.<Integer> emptyList()));
+
+		assertTrue(decoded.getDevices().isEmpty());
+		assertTrue(decoded.getAttempts().isEmpty());
+	}
+
+	@Test
+	public void isSmallerThanThePlainIds() {
+		List<String> regIds = new ArrayList<String>();
+		int plain = 0;
+		for (int i = 0; i < 1000; i++) {
+			String regId = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqxqsGyd-" + i;
+			regIds.add(regId);
+			plain += regId.length();
+		}
+
+		byte[] encoded = RecipientCodec.encode(regIds,
+				Collections.<Integer> nCopies(regIds.size(), 0));
+
+		assertTrue(encoded.length + " bytes", encoded.length < plain / 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnUnknownVersion() {
+		byte[] encoded = RecipientCodec.encode(Arrays.asList("a"), Arrays.asList(0));
+		encoded[0] = 0;
+		RecipientCodec.decode(encoded);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyBytes() {
+		RecipientCodec.decode(new byte[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTruncatedBytes() {
+		byte[] encoded = RecipientCodec.encode(Arrays.asList("abc", "abd"),
+				Arrays.asList(0, 1));
+		RecipientCodec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+	}
+
+	private static Map<String, Integer> toMap(List<String> regIds, List<Integer> attempts) {
+		assertEquals(regIds.size(), attempts.size());
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		for (int i = 0; i < regIds.size(); i++) {
+			map.put(regIds.get(i), attempts.get(i));
+		}
+		return map;
+	}
+
+}
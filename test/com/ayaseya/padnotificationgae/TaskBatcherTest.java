@@ -0,0 +1,140 @@
+package com.ayaseya.padnotificationgae;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueConstants;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Tests of {@link TaskBatcher}.
+ */
+public class TaskBatcherTest {
+
+	@Test
+	public void splitsTasksIntoBatches() {
+		FakeQueue queue = new FakeQueue(null);
+		TaskBatcher batcher = new TaskBatcher(queue.proxy(), 10);
+		for (int i = 0; i < 25; i++) {
+			batcher.add(task());
+		}
+
+		assertEquals(25, batcher.flush());
+		assertEquals(sizes(10, 10, 5), queue.batches);
+	}
+
+	@Test
+	public void submitsFullBatchesBeforeFlush() {
+		FakeQueue queue = new FakeQueue(null);
+		TaskBatcher batcher = new TaskBatcher(queue.proxy(), 10);
+		for (int i = 0; i < 19; i++) {
+			batcher.add(task());
+		}
+
+		assertEquals(sizes(10), queue.batches);
+	}
+
+	@Test
+	public void limitsBatchesToTheBulkAddLimit() {
+		FakeQueue queue = new FakeQueue(null);
+		int limit = QueueConstants.maxTasksPerAdd();
+		TaskBatcher batcher = new TaskBatcher(queue.proxy(), limit * 10);
+		for (int i = 0; i < limit + 1; i++) {
+			batcher.add(task());
+		}
+
+		assertEquals(limit + 1, batcher.flush());
+		assertEquals(sizes(limit, 1), queue.batches);
+	}
+
+	@Test
+	public void flushWithoutTasksAddsNothing() {
+		FakeQueue queue = new FakeQueue(null);
+
+		assertEquals(0, new TaskBatcher(queue.proxy(), 10).flush());
+		assertTrue(queue.batches.isEmpty());
+	}
+
+	@Test
+	public void treatsTasksAlreadyAddedAsSuccess() {
+		FakeQueue queue = new FakeQueue(new TaskAlreadyExistsException("already added"));
+		TaskBatcher batcher = new TaskBatcher(queue.proxy(), 10);
+		batcher.add(task());
+
+		assertEquals(1, batcher.flush());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rethrowsOtherFailures() {
+		FakeQueue queue = new FakeQueue(new IllegalStateException("queue unavailable"));
+		TaskBatcher batcher = new TaskBatcher(queue.proxy(), 10);
+		batcher.add(task());
+		batcher.flush();
+	}
+
+	private static TaskOptions task() {
+		return TaskOptions.Builder.withUrl("/send");
+	}
+
+	private static List<Integer> sizes(int... sizes) {
+		List<Integer> list = new ArrayList<Integer>(sizes.length);
+		for (int size : sizes) {
+			list.add(size);
+		}
+		return list;
+	}
+
+	// addAsyncで登録されたバッチの件数を記録し、指定した例外で失敗させるキューです。
+	private static final class FakeQueue implements InvocationHandler {
+
+		final List<Integer> batches = new ArrayList<Integer>();
+		private final RuntimeException failure;
+
+		FakeQueue(RuntimeException failure) {
+			this.failure = failure;
+		}
+
+		Queue proxy() {
+			return (Queue) Proxy.newProxyInstance(Queue.class.getClassLoader(),
+					new Class<?>[] { Queue.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (!method.getName().equals("addAsync")
+					|| !(args[0] instanceof Iterable)) {
+				throw new UnsupportedOperationException(method.getName());
+			}
+			int size = 0;
+			for (Object task : (Iterable<?>) args[0]) {
+				size++;
+			}
+			batches.add(size);
+			FutureTask<List<TaskHandle>> future = new FutureTask<List<TaskHandle>>(
+					new Callable<List<TaskHandle>>() {
+						@Override
+						public List<TaskHandle> call() {
+							if (failure != null) {
+								throw failure;
+							}
+							return new ArrayList<TaskHandle>();
+						}
+					});
+			future.run();
+			return future;
+		}
+	}
+
+}